@@ -0,0 +1,158 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses the number of nearest neighbors per case automatically, rather than querying a fixed
+ * (large) number for every case up front.
+ * <p>
+ * Every case starts with twice the number of controls needed. After optimizing, cases that are
+ * short of controls, or that sit in a community where some case had to take one of its last
+ * remaining candidates (so the selection may have been constrained by the candidates that were
+ * queried), have their neighbor count doubled and are re-queried. Only the communities touched by
+ * re-queried cases are re-optimized, starting from the previous solution (see
+ * {@link WarmStartCache}). This repeats until no case needs more neighbors or the maximum has been
+ * reached, which keeps cost matrices small for the majority of cases.
+ */
+class AdaptiveNeighborSelection {
+  private final KDTree<Sample> tree;
+  private final SampleStore controls;
+  private final Logger log;
+  private Match[] candidates;
+
+  /**
+   * @param tree tree of the controls
+   * @param controls store the controls in the tree are interned in
+   * @param log
+   */
+  AdaptiveNeighborSelection(KDTree<Sample> tree, SampleStore controls, Logger log) {
+    super();
+    this.tree = tree;
+    this.controls = controls;
+    this.log = log;
+  }
+
+  /**
+   * @param cases the cases to match, interned in order (i.e. the i'th case has index i)
+   * @param numSelect number of controls needed for each case
+   * @param maxNumSelect maximum number of neighbors to query for a case
+   * @param options
+   * @return the optimized matches, in the same order as the cases
+   */
+  List<Match> select(List<Sample> cases, int numSelect, int maxNumSelect,
+                     OptimizerOptions options) throws InterruptedException, ExecutionException {
+    int n = cases.size();
+    for (int i = 0; i < n; i++) {
+      if (cases.get(i).index != i) {
+        throw new IllegalArgumentException("Cases must be interned in order");
+      }
+    }
+    int maxNeighbors = Math.min(maxNumSelect, controls.size());
+    int[] numNeighbors = new int[n];
+    Arrays.fill(numNeighbors, Math.min(2 * numSelect, maxNeighbors));
+    candidates = new Match[n];
+    Match[] selected = new Match[n];
+    // cases whose communities need to be (re-)optimized
+    boolean[] dirty = new boolean[n];
+    Arrays.fill(dirty, true);
+    // re-optimized communities mostly differ by a few candidates, so start from the last solution
+    WarmStartCache warmStart = new WarmStartCache(n, numSelect, controls.size());
+    List<Integer> toQuery = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      toQuery.add(i);
+    }
+    // the overall time budget covers every round, rather than starting over with each
+    TimeBudget budget = new TimeBudget(options.getCommunityTimeBudget(),
+                                       options.getTotalTimeBudget());
+
+    for (int round = 1; !toQuery.isEmpty(); round++) {
+      log.log(Level.INFO, "Adaptive selection round {0}: querying neighbors for {1} cases",
+              new Object[] {round, toQuery.size()});
+      query(cases, toQuery, numNeighbors, options.getThreads());
+
+      // communities are formed over all cases, so that re-queried cases pick up any community they
+      // now share controls with. Communities without a re-queried case are unchanged
+      List<List<Match>> communities = SelectOptimizedNeighbors.getCommunities(Arrays.asList(candidates),
+                                                                              controls);
+      List<List<Match>> activeCommunities = communities.stream()
+                                                       .filter(c -> c.stream()
+                                                                     .anyMatch(m -> dirty[m.sample.index]))
+                                                       .collect(Collectors.toList());
+      List<Match> active = activeCommunities.stream().flatMap(List::stream)
+                                            .collect(Collectors.toList());
+      log.log(Level.INFO, "Adaptive selection round {0}: optimizing {1} cases in {2} communities",
+              new Object[] {round, active.size(), activeCommunities.size()});
+      SelectOptimizedNeighbors.optimizeDuplicates(active, numSelect, options, warmStart, null,
+                                                  budget, log)
+                              .forEach(m -> selected[m.sample.index] = m);
+
+      Arrays.fill(dirty, false);
+      toQuery.clear();
+      for (List<Match> community : activeCommunities) {
+        if (isConstrained(community, selected, numSelect)) {
+          for (Match match : community) {
+            int i = match.sample.index;
+            if (numNeighbors[i] < maxNeighbors) {
+              numNeighbors[i] = Math.min(2 * numNeighbors[i], maxNeighbors);
+              dirty[i] = true;
+              toQuery.add(i);
+            }
+          }
+        }
+      }
+    }
+    log.log(Level.INFO, "Adaptive selection queried a mean of {0} neighbors per case",
+            Arrays.stream(numNeighbors).average().orElse(0));
+    return Arrays.asList(selected);
+  }
+
+  /**
+   * Query the neighbors of the given cases, on a pool of the configured number of threads (like the
+   * communities are optimized on, see {@link CommunityScheduler}) rather than the common pool
+   */
+  private void query(List<Sample> cases, List<Integer> toQuery, int[] numNeighbors,
+                     int threads) throws InterruptedException, ExecutionException {
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      pool.submit(() -> toQuery.parallelStream().forEach(i -> {
+        candidates[i] = KDTree.getNearestNeighborsForSample(tree, controls, cases.get(i),
+                                                            numNeighbors[i]);
+      })).get();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the final neighbors queried for each case, in the same order as the cases
+   */
+  List<Match> getCandidates() {
+    return Arrays.asList(candidates);
+  }
+
+  /**
+   * @return true if a case in the community did not get enough controls, or had to select from its
+   *         last numSelect candidates
+   */
+  private static boolean isConstrained(List<Match> community, Match[] selected, int numSelect) {
+    for (Match candidate : community) {
+      Match selection = selected[candidate.sample.index];
+      if (selection.size() < numSelect) {
+        return true;
+      }
+      for (int j = 0; j < numSelect; j++) {
+        if (candidate.indexOf(selection.getMatchIndex(j)) >= candidate.size() - numSelect) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,141 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads gzip compressed input, decompressing on a separate thread so that decompression and
+ * parsing overlap. Decompressed chunks are handed over through a bounded queue, so the
+ * decompressor only runs a few chunks ahead of the reader.
+ */
+class BackgroundGzipInputStream extends InputStream {
+  // decompressed size of the chunks handed to the reader
+  private static final int CHUNK_SIZE = 1 << 20;
+  // largest number of decompressed chunks waiting to be read
+  private static final int QUEUED_CHUNKS = 8;
+  // buffer of compressed input
+  private static final int INPUT_BUFFER_SIZE = 1 << 16;
+  // marks the end of the decompressed input
+  private static final byte[] END = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+  private final Thread decompressor;
+  private volatile IOException error = null;
+  private byte[] chunk = null;
+  private int position = 0;
+  private boolean ended = false;
+
+  private BackgroundGzipInputStream(InputStream compressed) {
+    super();
+    this.decompressor = new Thread(() -> decompress(compressed), "gzip-decompressor");
+    decompressor.setDaemon(true);
+    decompressor.start();
+  }
+
+  /**
+   * @return a stream of the contents of the file, decompressed in the background if the file is
+   *         gzip compressed (whatever its name)
+   */
+  static InputStream open(Path path) throws IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(path), INPUT_BUFFER_SIZE);
+    in.mark(2);
+    int first = in.read();
+    int second = in.read();
+    in.reset();
+    if (first == (GZIPInputStream.GZIP_MAGIC & 0xff)
+        && second == (GZIPInputStream.GZIP_MAGIC >> 8 & 0xff)) {
+      return new BackgroundGzipInputStream(in);
+    }
+    return in;
+  }
+
+  private void decompress(InputStream compressed) {
+    try (InputStream in = compressed;
+         GZIPInputStream gzip = new GZIPInputStream(in, INPUT_BUFFER_SIZE)) {
+      int read;
+      do {
+        byte[] decompressed = new byte[CHUNK_SIZE];
+        read = 0;
+        int n;
+        while (read < decompressed.length
+               && (n = gzip.read(decompressed, read, decompressed.length - read)) >= 0) {
+          read += n;
+        }
+        if (read > 0) {
+          chunks.put(read == decompressed.length ? decompressed
+                                                 : Arrays.copyOf(decompressed, read));
+        }
+      } while (read == CHUNK_SIZE);
+    } catch (IOException e) {
+      error = e;
+    } catch (InterruptedException e) {
+      // closed by the reader
+      return;
+    }
+    try {
+      chunks.put(END);
+    } catch (InterruptedException e) {
+      // closed by the reader
+    }
+  }
+
+  /**
+   * @return false at the end of the input
+   */
+  private boolean nextChunk() throws IOException {
+    while (!ended && (chunk == null || position == chunk.length)) {
+      try {
+        chunk = chunks.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while decompressing", e);
+      }
+      position = 0;
+      if (chunk == END) {
+        ended = true;
+        if (error != null) {
+          throw new IOException("Could not decompress input", error);
+        }
+      }
+    }
+    return !ended;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return nextChunk() ? chunk[position++] & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int n = Math.min(len, chunk.length - position);
+    System.arraycopy(chunk, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    ended = true;
+    decompressor.interrupt();
+    chunks.clear();
+    try {
+      decompressor.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,455 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * A compact binary file of match results: for each case, the store indices of its selected
+ * controls, their distances and the hungarian and optimal flags, with dictionaries of the case and
+ * control IDs. Much smaller and faster to load than the tab delimited match output, for downstream
+ * jobs that only need the selections (the data columns of the samples are not stored).
+ * <p>
+ * All numbers are little-endian. The file starts with the magic bytes {@code KDMATCH1}, the format
+ * version and the number of selections per case, followed by one fixed size record per case (in
+ * the order written): the case index (its position in the case dictionary), the number of
+ * selections, the flags (1 for hungarian, 2 for optimal), then the control index of each selection
+ * slot (-1 for an empty slot) and the distance of each slot (NaN for an empty slot). The case and
+ * control dictionaries follow the records, each as the number of IDs, the offset of each ID (plus
+ * the end of the last) and the UTF-8 bytes of the IDs; the control dictionary holds every control
+ * of the store the matches index, in store order. The file ends with a trailer holding the
+ * positions of the two dictionaries and the number of cases.
+ */
+public class BinaryMatchFile {
+  private static final byte[] MAGIC = "KDMATCH1".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 1;
+  // magic, version and selections per case
+  private static final int HEADER_SIZE = MAGIC.length + 2 * Integer.BYTES;
+  // positions of the dictionaries and the number of cases
+  private static final int TRAILER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+  private static final int HUNGARIAN_FLAG = 1;
+  private static final int OPTIMAL_FLAG = 2;
+  // size of the buffer used to write the file
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  private final int numSelect;
+  private final int numCases;
+  private final int recordSize;
+  // consecutive runs of whole records, each small enough to be mapped
+  private final ByteBuffer[] records;
+  private final int recordsPerSegment;
+  private final IdDictionary caseIDs;
+  private final IdDictionary controlIDs;
+
+  private BinaryMatchFile(int numSelect, int numCases, ByteBuffer[] records,
+                          int recordsPerSegment, IdDictionary caseIDs, IdDictionary controlIDs) {
+    super();
+    this.numSelect = numSelect;
+    this.numCases = numCases;
+    this.recordSize = getRecordSize(numSelect);
+    this.records = records;
+    this.recordsPerSegment = recordsPerSegment;
+    this.caseIDs = caseIDs;
+    this.controlIDs = controlIDs;
+  }
+
+  private static int getRecordSize(int numSelect) {
+    return 3 * Integer.BYTES + numSelect * (Integer.BYTES + Double.BYTES);
+  }
+
+  /**
+   * @return a sink writing the matches to a new binary match file (overwriting the output if it
+   *         exists)
+   */
+  static MatchSink sink(Path output, int numSelect) throws IOException {
+    return new ResultWriter(output, numSelect);
+  }
+
+  /**
+   * @return true if the file starts with the magic bytes of a binary match file
+   */
+  static boolean isBinary(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) {
+        // keep reading until the magic bytes are in or the file ends
+      }
+      return !magic.hasRemaining() && Arrays.equals(magic.array(), MAGIC);
+    }
+  }
+
+  /**
+   * Map a binary match file
+   */
+  public static BinaryMatchFile open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE + TRAILER_SIZE) {
+        throw new IllegalArgumentException(path + " is not a binary match file");
+      }
+      ByteBuffer header = map(channel, 0, HEADER_SIZE);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IllegalArgumentException(path + " is not a binary match file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported version " + version + " of " + path);
+      }
+      int numSelect = header.getInt();
+      ByteBuffer trailer = map(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+      long casesPosition = trailer.getLong();
+      long controlsPosition = trailer.getLong();
+      int numCases = trailer.getInt();
+
+      int recordSize = getRecordSize(numSelect);
+      int recordsPerSegment = Math.max(1, Integer.MAX_VALUE / recordSize);
+      int segments = (numCases + recordsPerSegment - 1) / recordsPerSegment;
+      ByteBuffer[] records = new ByteBuffer[segments];
+      for (int s = 0; s < segments; s++) {
+        int count = Math.min(recordsPerSegment, numCases - s * recordsPerSegment);
+        records[s] = map(channel, HEADER_SIZE + (long) s * recordsPerSegment * recordSize,
+                         (long) count * recordSize);
+      }
+      IdDictionary caseIDs = IdDictionary.map(channel, casesPosition);
+      IdDictionary controlIDs = IdDictionary.map(channel, controlsPosition);
+      return new BinaryMatchFile(numSelect, numCases, records, recordsPerSegment, caseIDs,
+                                 controlIDs);
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * @return the number of selection slots of each case
+   */
+  public int getNumSelect() {
+    return numSelect;
+  }
+
+  /**
+   * @return the number of cases
+   */
+  public int size() {
+    return numCases;
+  }
+
+  /**
+   * @return the mapped records holding the record of the case
+   */
+  private ByteBuffer getRecords(int matchIndex) {
+    return records[matchIndex / recordsPerSegment];
+  }
+
+  /**
+   * @return the position of the record of the case in {@link #getRecords(int)}
+   */
+  private int getPosition(int matchIndex) {
+    return matchIndex % recordsPerSegment * recordSize;
+  }
+
+  public String getCaseID(int matchIndex) {
+    int caseIndex = getRecords(matchIndex).getInt(getPosition(matchIndex));
+    return caseIDs.get(caseIndex);
+  }
+
+  /**
+   * @return the number of controls selected for the case
+   */
+  public int getNumSelected(int matchIndex) {
+    return getRecords(matchIndex).getInt(getPosition(matchIndex) + Integer.BYTES);
+  }
+
+  public boolean isHungarian(int matchIndex) {
+    return (getFlags(matchIndex) & HUNGARIAN_FLAG) != 0;
+  }
+
+  public boolean isOptimal(int matchIndex) {
+    return (getFlags(matchIndex) & OPTIMAL_FLAG) != 0;
+  }
+
+  private int getFlags(int matchIndex) {
+    return getRecords(matchIndex).getInt(getPosition(matchIndex) + 2 * Integer.BYTES);
+  }
+
+  /**
+   * @return the store index of the j'th control selected for the case, or -1 for an empty slot
+   */
+  public int getControlIndex(int matchIndex, int j) {
+    return getRecords(matchIndex).getInt(getPosition(matchIndex) + (3 + j) * Integer.BYTES);
+  }
+
+  /**
+   * @return the ID of the j'th control selected for the case, or null for an empty slot
+   */
+  public String getControlID(int matchIndex, int j) {
+    int control = getControlIndex(matchIndex, j);
+    return control >= 0 ? controlIDs.get(control) : null;
+  }
+
+  /**
+   * @return the distance of the j'th control selected for the case, or NaN for an empty slot
+   */
+  public double getDistance(int matchIndex, int j) {
+    return getRecords(matchIndex).getDouble(getPosition(matchIndex)
+                                            + (3 + numSelect) * Integer.BYTES + j * Double.BYTES);
+  }
+
+  /**
+   * @return the number of controls in the control dictionary
+   */
+  public int getNumControls() {
+    return controlIDs.size();
+  }
+
+  /**
+   * Write the results as a tab delimited file (gzip compressed if the name ends with .gz) with the
+   * case ID, the ID and distance of each selection and the flags
+   */
+  public void export(Path output) throws IOException {
+    OutputStream out;
+    if (output.toString().endsWith(".gz")) {
+      out = new GzipBlockOutputStream(output.toString(), false);
+    } else {
+      out = Files.newOutputStream(output);
+    }
+    OutputStreamWriter encoded = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    try (PrintWriter writer = new PrintWriter(new BufferedWriter(encoded, 1 << 16))) {
+      StringJoiner header = new StringJoiner("\t");
+      header.add("id");
+      for (int j = 0; j < numSelect; j++) {
+        header.add("control_" + (j + 1) + "_id");
+        header.add("control_" + (j + 1) + "_distance");
+      }
+      header.add("hungarian_selection");
+      header.add("optimal_selection");
+      writer.println(header);
+      for (int i = 0; i < numCases; i++) {
+        StringJoiner row = new StringJoiner("\t");
+        row.add(getCaseID(i));
+        for (int j = 0; j < numSelect; j++) {
+          int control = getControlIndex(i, j);
+          row.add(control >= 0 ? controlIDs.get(control) : "no-match");
+          row.add(Double.toString(getDistance(i, j)));
+        }
+        row.add(Boolean.toString(isHungarian(i)));
+        row.add(Boolean.toString(isOptimal(i)));
+        writer.println(row);
+      }
+      KDMatch.checkError(writer, output.toString());
+    }
+  }
+
+  /**
+   * Export a binary match file as a tab delimited file. Arguments: the binary file and the output
+   * file (gzip compressed if it ends with .gz)
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: BinaryMatchFile matches.bin output.txt[.gz]");
+      System.exit(1);
+    }
+    open(Paths.get(args[0])).export(Paths.get(args[1]));
+  }
+
+  /**
+   * IDs stored as their offsets and UTF-8 bytes
+   */
+  private static class IdDictionary {
+    private final int size;
+    private final ByteBuffer offsets;
+    private final ByteBuffer ids;
+
+    private IdDictionary(int size, ByteBuffer offsets, ByteBuffer ids) {
+      this.size = size;
+      this.offsets = offsets;
+      this.ids = ids;
+    }
+
+    static IdDictionary map(FileChannel channel, long position) throws IOException {
+      int size = BinaryMatchFile.map(channel, position, Integer.BYTES).getInt();
+      long offsetsPosition = position + Integer.BYTES;
+      ByteBuffer offsets = BinaryMatchFile.map(channel, offsetsPosition,
+                                               (size + 1L) * Integer.BYTES);
+      int idsSize = offsets.getInt(size * Integer.BYTES);
+      ByteBuffer ids = BinaryMatchFile.map(channel,
+                                           offsetsPosition + (size + 1L) * Integer.BYTES, idsSize);
+      return new IdDictionary(size, offsets, ids);
+    }
+
+    int size() {
+      return size;
+    }
+
+    String get(int index) {
+      int from = offsets.getInt(index * Integer.BYTES);
+      int to = offsets.getInt((index + 1) * Integer.BYTES);
+      byte[] id = new byte[to - from];
+      ByteBuffer view = ids.duplicate();
+      view.position(from);
+      view.get(id);
+      return new String(id, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Writes the records as the matches arrive, and the dictionaries and trailer when closed. If a
+   * write failed, or the sink is aborted, the file is deleted instead, so an incomplete file is
+   * never left looking complete
+   */
+  private static class ResultWriter implements MatchSink {
+    private final Path output;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int numSelect;
+    private final List<String> caseIDs = new ArrayList<>();
+    private SampleStore controls;
+    private long position = 0;
+    private boolean failed = false;
+
+    ResultWriter(Path output, int numSelect) throws IOException {
+      this.output = output;
+      this.channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                                      StandardOpenOption.TRUNCATE_EXISTING,
+                                      StandardOpenOption.WRITE);
+      this.buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_SIZE,
+                                                       getRecordSize(numSelect)))
+                              .order(ByteOrder.LITTLE_ENDIAN);
+      this.numSelect = numSelect;
+      buffer.put(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(numSelect);
+    }
+
+    @Override
+    public void write(List<Match> matches) throws IOException {
+      try {
+        writeRecords(matches);
+      } catch (IOException | RuntimeException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    private void writeRecords(List<Match> matches) throws IOException {
+      for (Match match : matches) {
+        if (controls == null) {
+          controls = match.getControls();
+        }
+        ensureRemaining(getRecordSize(numSelect));
+        int selected = Math.min(numSelect, match.size());
+        buffer.putInt(caseIDs.size());
+        buffer.putInt(selected);
+        buffer.putInt((match.isHungarian() ? HUNGARIAN_FLAG : 0)
+                      | (match.isOptimal() ? OPTIMAL_FLAG : 0));
+        for (int j = 0; j < numSelect; j++) {
+          buffer.putInt(j < selected ? match.getMatchIndex(j) : -1);
+        }
+        for (int j = 0; j < numSelect; j++) {
+          buffer.putDouble(j < selected ? match.getDistance(j) : Double.NaN);
+        }
+        caseIDs.add(match.sample.getID());
+      }
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    private void putDictionary(List<String> ids) throws IOException {
+      byte[][] bytes = new byte[ids.size()][];
+      long total = 0;
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = ids.get(i).getBytes(StandardCharsets.UTF_8);
+        total += bytes[i].length;
+      }
+      if (total > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("IDs take more than 2GB");
+      }
+      ensureRemaining(Integer.BYTES);
+      buffer.putInt(bytes.length);
+      int offset = 0;
+      for (int i = 0; i <= bytes.length; i++) {
+        ensureRemaining(Integer.BYTES);
+        buffer.putInt(offset);
+        if (i < bytes.length) {
+          offset += bytes[i].length;
+        }
+      }
+      for (byte[] id : bytes) {
+        int from = 0;
+        while (from < id.length) {
+          ensureRemaining(1);
+          int n = Math.min(id.length - from, buffer.remaining());
+          buffer.put(id, from, n);
+          from += n;
+        }
+      }
+    }
+
+    @Override
+    public void abort() throws IOException {
+      channel.close();
+      Files.deleteIfExists(output);
+    }
+
+    @Override
+    public void close() throws IOException {
+      boolean complete = false;
+      try {
+        if (failed) {
+          throw new IOException("Discarded " + output + " after a failed write");
+        }
+        flush();
+        long casesPosition = position;
+        putDictionary(caseIDs);
+        flush();
+        long controlsPosition = position;
+        List<String> controlIDs = new ArrayList<>();
+        for (int i = 0; controls != null && i < controls.size(); i++) {
+          controlIDs.add(controls.get(i).getID());
+        }
+        putDictionary(controlIDs);
+        ensureRemaining(TRAILER_SIZE);
+        buffer.putLong(casesPosition);
+        buffer.putLong(controlsPosition);
+        buffer.putInt(caseIDs.size());
+        flush();
+        complete = true;
+      } finally {
+        channel.close();
+        if (!complete) {
+          Files.deleteIfExists(output);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,320 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A binary, columnar sample file that is memory-mapped rather than parsed, so that large control
+ * pools can be reused across runs without parsing text each time.
+ * <p>
+ * All numbers are little-endian. The file starts with a fixed header: the magic bytes
+ * {@code KDSAMPLE}, the format version, the number of data columns, the number of samples, the size
+ * of each value (8 for doubles, 4 for floats) and the length of the column names. The column names
+ * follow as one tab delimited UTF-8 line (as in the text format), then the ID dictionary: the
+ * offset of each ID (plus the end of the last) and the UTF-8 bytes of all IDs. Finally, aligned to
+ * 8 bytes, come the values, one contiguous block per data column.
+ * <p>
+ * Storing floats halves the size of the file, but rounds the data (and so the distances) to float
+ * precision.
+ */
+public class BinarySampleFile {
+  private static final byte[] MAGIC = "KDSAMPLE".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 1;
+  // magic, version, data columns, samples, value size and length of the column names
+  private static final int FIXED_HEADER_SIZE = MAGIC.length + 5 * Integer.BYTES;
+  // size of the buffer used to write the file
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  private final String[] header;
+  private final int numDims;
+  private final int numSamples;
+  private final int valueSize;
+  private final ByteBuffer idOffsets;
+  private final ByteBuffer ids;
+  private final ByteBuffer[] columns;
+
+  private BinarySampleFile(String[] header, int numDims, int numSamples, int valueSize,
+                           ByteBuffer idOffsets, ByteBuffer ids, ByteBuffer[] columns) {
+    super();
+    this.header = header;
+    this.numDims = numDims;
+    this.numSamples = numSamples;
+    this.valueSize = valueSize;
+    this.idOffsets = idOffsets;
+    this.ids = ids;
+    this.columns = columns;
+  }
+
+  /**
+   * @return true if the file starts with the magic bytes of the binary format
+   */
+  static boolean isBinary(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) {
+        // keep reading until the magic bytes are in or the file ends
+      }
+      return !magic.hasRemaining() && Arrays.equals(magic.array(), MAGIC);
+    }
+  }
+
+  /**
+   * Map a binary sample file. Only the fixed header and the column names are read; IDs and values
+   * are read from the mapped file as they are needed.
+   */
+  static BinarySampleFile open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < FIXED_HEADER_SIZE) {
+        throw new IllegalArgumentException(path + " is not a binary sample file");
+      }
+      ByteBuffer fixed = map(channel, 0, FIXED_HEADER_SIZE);
+      byte[] magic = new byte[MAGIC.length];
+      fixed.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IllegalArgumentException(path + " is not a binary sample file");
+      }
+      int version = fixed.getInt();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported version " + version + " of " + path);
+      }
+      int numDims = fixed.getInt();
+      int numSamples = fixed.getInt();
+      int valueSize = fixed.getInt();
+      int headerLength = fixed.getInt();
+      if (valueSize != Double.BYTES && valueSize != Float.BYTES) {
+        throw new IllegalArgumentException("Unsupported value size " + valueSize + " in " + path);
+      }
+
+      long position = FIXED_HEADER_SIZE;
+      byte[] headerBytes = new byte[headerLength];
+      map(channel, position, headerLength).get(headerBytes);
+      String[] header = new String(headerBytes, StandardCharsets.UTF_8).split("\t");
+      position += headerLength;
+
+      long offsetsSize = (numSamples + 1L) * Integer.BYTES;
+      ByteBuffer idOffsets = map(channel, position, offsetsSize);
+      position += offsetsSize;
+      int idsSize = idOffsets.getInt(numSamples * Integer.BYTES);
+      ByteBuffer ids = map(channel, position, idsSize);
+      position = align(position + idsSize);
+
+      long columnSize = (long) numSamples * valueSize;
+      if (position + numDims * columnSize > size) {
+        throw new IllegalArgumentException(path + " is truncated");
+      }
+      ByteBuffer[] columns = new ByteBuffer[numDims];
+      for (int d = 0; d < numDims; d++) {
+        columns[d] = map(channel, position, columnSize);
+        position += columnSize;
+      }
+      return new BinarySampleFile(header, numDims, numSamples, valueSize, idOffsets, ids, columns);
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Sections of more than 2GB are not supported");
+    }
+    return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static long align(long position) {
+    return (position + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+  }
+
+  /**
+   * @return the column names, the ID column first
+   */
+  String[] getHeader() {
+    return header;
+  }
+
+  int getNumDims() {
+    return numDims;
+  }
+
+  int size() {
+    return numSamples;
+  }
+
+  String getID(int sample) {
+    int from = idOffsets.getInt(sample * Integer.BYTES);
+    int to = idOffsets.getInt((sample + 1) * Integer.BYTES);
+    byte[] id = new byte[to - from];
+    ByteBuffer view = ids.duplicate();
+    view.position(from);
+    view.get(id);
+    return new String(id, StandardCharsets.UTF_8);
+  }
+
+  double getValue(int sample, int dim) {
+    return valueSize == Double.BYTES ? columns[dim].getDouble(sample * Double.BYTES)
+                                     : columns[dim].getFloat(sample * Float.BYTES);
+  }
+
+  /**
+   * @return the values of one data column, in sample order
+   */
+  double[] getColumn(int dim) {
+    double[] values = new double[numSamples];
+    ByteBuffer column = columns[dim].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (valueSize == Double.BYTES) {
+      column.asDoubleBuffer().get(values);
+    } else {
+      for (int i = 0; i < numSamples; i++) {
+        values[i] = column.getFloat(i * Float.BYTES);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return the samples, in the order of the file
+   */
+  List<Sample> getSamples() {
+    double[][] values = new double[numDims][];
+    IntStream.range(0, numDims).parallel().forEach(d -> values[d] = getColumn(d));
+    return IntStream.range(0, numSamples).parallel().mapToObj(i -> {
+      double[] dim = new double[numDims];
+      for (int d = 0; d < numDims; d++) {
+        dim[d] = values[d][i];
+      }
+      return new Sample(getID(i), dim);
+    }).collect(Collectors.toList());
+  }
+
+  /**
+   * Write samples in the binary format
+   *
+   * @param header the column names, the ID column first
+   * @param samples samples that all have header.length - 1 data columns
+   * @param output the file to write
+   * @param asFloat true to store the values as floats rather than doubles
+   */
+  static void write(String[] header, List<Sample> samples, Path output,
+                    boolean asFloat) throws IOException {
+    int numDims = header.length - 1;
+    int valueSize = asFloat ? Float.BYTES : Double.BYTES;
+    byte[] headerBytes = String.join("\t", header).getBytes(StandardCharsets.UTF_8);
+    byte[][] ids = new byte[samples.size()][];
+    long idsSize = 0;
+    for (int i = 0; i < samples.size(); i++) {
+      Sample sample = samples.get(i);
+      if (sample.dim.length != numDims) {
+        throw new IllegalArgumentException("Sample " + sample.getID() + " has " + sample.dim.length
+                                           + " data columns, expected " + numDims);
+      }
+      ids[i] = sample.getID().getBytes(StandardCharsets.UTF_8);
+      idsSize += ids[i].length;
+    }
+    if (idsSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("IDs take more than 2GB");
+    }
+
+    try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE)
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(numDims);
+      buffer.putInt(samples.size());
+      buffer.putInt(valueSize);
+      buffer.putInt(headerBytes.length);
+      long position = FIXED_HEADER_SIZE;
+      position += put(channel, buffer, headerBytes);
+
+      int offset = 0;
+      for (int i = 0; i <= ids.length; i++) {
+        ensureRemaining(channel, buffer, Integer.BYTES);
+        buffer.putInt(offset);
+        if (i < ids.length) {
+          offset += ids[i].length;
+        }
+      }
+      position += (ids.length + 1L) * Integer.BYTES;
+      for (byte[] id : ids) {
+        position += put(channel, buffer, id);
+      }
+      while (position < align(position)) {
+        ensureRemaining(channel, buffer, 1);
+        buffer.put((byte) 0);
+        position++;
+      }
+
+      for (int d = 0; d < numDims; d++) {
+        for (Sample sample : samples) {
+          ensureRemaining(channel, buffer, valueSize);
+          if (asFloat) {
+            buffer.putFloat((float) sample.dim[d]);
+          } else {
+            buffer.putDouble(sample.dim[d]);
+          }
+        }
+      }
+      flush(channel, buffer);
+    }
+  }
+
+  /**
+   * @return the number of bytes put
+   */
+  private static int put(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+    int from = 0;
+    while (from < bytes.length) {
+      ensureRemaining(channel, buffer, 1);
+      int n = Math.min(bytes.length - from, buffer.remaining());
+      buffer.put(bytes, from, n);
+      from += n;
+    }
+    return bytes.length;
+  }
+
+  private static void ensureRemaining(FileChannel channel, ByteBuffer buffer,
+                                      int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush(channel, buffer);
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Convert a tab delimited (optionally gzip compressed) sample file to the binary format.
+   * Arguments: the input file, the output file, and optionally "float" to store floats rather than
+   * doubles.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3 || args.length == 3 && !args[2].equals("float")) {
+      System.err.println("Usage: BinarySampleFile input.txt[.gz] output.bin [float]");
+      System.exit(1);
+    }
+    Logger log = Logger.getAnonymousLogger();
+    Path input = Paths.get(args[0]);
+    Path output = Paths.get(args[1]);
+    SampleFile samples = SampleFile.load(input);
+    log.info("converting " + samples.getSamples().size() + " samples from " + input + " to "
+             + output);
+    write(samples.getHeader(), samples.getSamples(), output, args.length == 3);
+  }
+}
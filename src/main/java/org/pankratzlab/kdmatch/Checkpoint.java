@@ -0,0 +1,132 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the progress of a run to a directory, so that a run that is killed (e.g. preempted on a
+ * shared cluster) can be started again with the same arguments and resume where it stopped.
+ * <p>
+ * The nearest neighbor candidates of every case are saved (as a {@link BinaryMatchFile}) once they
+ * are selected and the baseline output is written, so a resumed run skips both. The selections of
+ * each community are then added to a {@link CommunityJournal} as it is optimized, so a resumed run
+ * only optimizes the communities that were not finished.
+ */
+class Checkpoint {
+  private static final String CANDIDATES = "candidates.bin";
+  private static final String JOURNAL = "communities.journal";
+
+  private final Path directory;
+  private final Logger log;
+
+  /**
+   * @param directory the directory holding the checkpoint, created if it does not exist
+   * @param log
+   */
+  Checkpoint(Path directory, Logger log) throws IOException {
+    super();
+    this.directory = Files.createDirectories(directory);
+    this.log = log;
+  }
+
+  /**
+   * @return true if the candidates were saved by a previous run
+   */
+  boolean hasCandidates() {
+    return Files.isRegularFile(directory.resolve(CANDIDATES));
+  }
+
+  /**
+   * Save the candidates, replacing the saved candidates only once they are completely written
+   *
+   * @param candidates the nearest neighbors of each case, in the order of the cases
+   * @param numNeighbors the most neighbors of any case
+   */
+  void saveCandidates(List<Match> candidates, int numNeighbors) throws IOException {
+    Path saved = directory.resolve(CANDIDATES);
+    Path partial = directory.resolve(CANDIDATES + ".partial");
+    try (MatchSink sink = BinaryMatchFile.sink(partial, numNeighbors)) {
+      sink.write(candidates);
+    }
+    Files.move(partial, saved, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    log.log(Level.INFO, "saved the candidates of {0} cases to {1}",
+            new Object[] {candidates.size(), saved});
+  }
+
+  /**
+   * Load the saved candidates, which must have been selected for the same cases and controls
+   *
+   * @param cases the cases, in the order the candidates were selected for them
+   * @param controls the store the controls in the tree are interned in
+   * @param numNeighbors number of nearest neighbors queried for each case
+   * @return the nearest neighbors of each case, in the order of the cases
+   */
+  List<Match> loadCandidates(List<Sample> cases, SampleStore controls,
+                             int numNeighbors) throws IOException {
+    Path saved = directory.resolve(CANDIDATES);
+    BinaryMatchFile file = BinaryMatchFile.open(saved);
+    if (file.getNumSelect() != numNeighbors) {
+      throw new IllegalArgumentException(saved + " holds " + file.getNumSelect()
+                                         + " nearest neighbors of each case, rather than "
+                                         + numNeighbors + "; remove " + directory
+                                         + " to start over");
+    }
+    if (file.size() != cases.size()
+        || (file.size() > 0 && file.getNumControls() != controls.size())) {
+      throw new IllegalArgumentException(saved + " holds the candidates of " + file.size()
+                                         + " cases among " + file.getNumControls()
+                                         + " controls, rather than " + cases.size() + " among "
+                                         + controls.size() + "; remove " + directory
+                                         + " to start over");
+    }
+    List<Match> candidates = new ArrayList<>(cases.size());
+    for (int i = 0; i < file.size(); i++) {
+      Sample sample = cases.get(i);
+      if (!file.getCaseID(i).equals(sample.getID())) {
+        throw new IllegalArgumentException("Case " + i + " of " + saved + " is "
+                                           + file.getCaseID(i) + " rather than " + sample.getID()
+                                           + "; remove " + directory + " to start over");
+      }
+      int size = file.getNumSelected(i);
+      int[] indices = new int[size];
+      double[] distances = new double[size];
+      for (int j = 0; j < size; j++) {
+        indices[j] = file.getControlIndex(i, j);
+        distances[j] = file.getDistance(i, j);
+        if (!file.getControlID(i, j).equals(controls.get(indices[j]).getID())) {
+          throw new IllegalArgumentException("Control " + indices[j] + " of " + saved + " is "
+                                             + file.getControlID(i, j) + " rather than "
+                                             + controls.get(indices[j]).getID() + "; remove "
+                                             + directory + " to start over");
+        }
+      }
+      Match match = new Match(sample, controls, indices, distances);
+      match.setHungarian(file.isHungarian(i));
+      match.setOptimal(file.isOptimal(i));
+      candidates.add(match);
+    }
+    log.log(Level.INFO, "loaded the candidates of {0} cases from {1}",
+            new Object[] {candidates.size(), saved});
+    return candidates;
+  }
+
+  /**
+   * @param numSelect number of controls selected for each case
+   * @param numNeighbors number of nearest neighbors queried for each case
+   * @param options settings of the optimization
+   * @return the journal of optimized communities, holding those finished by previous runs with the
+   *         same settings
+   */
+  CommunityJournal openJournal(int numSelect, int numNeighbors,
+                               OptimizerOptions options) throws IOException {
+    return CommunityJournal.open(directory.resolve(JOURNAL), numSelect, numNeighbors, options,
+                                 log);
+  }
+}
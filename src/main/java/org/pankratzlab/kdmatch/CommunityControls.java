@@ -0,0 +1,78 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The distinct controls matched to a community of cases, mapped to dense local columns (0 ..
+ * size()-1) in order of their store index. The column of each candidate of each case is worked out
+ * once, as the controls are sorted, so building a cost matrix needs no lookups
+ */
+class CommunityControls {
+  private final int[] controls;
+  // position of the first candidate of each case in candidateColumns
+  private final int[] offsets;
+  // the column of each candidate, case by case
+  private final int[] candidateColumns;
+
+  CommunityControls(List<Match> community) {
+    this.offsets = new int[community.size()];
+    int total = 0;
+    for (int i = 0; i < community.size(); i++) {
+      offsets[i] = total;
+      total += community.get(i).size();
+    }
+    // store index in the high bits, position of the candidate in the low bits
+    long[] all = new long[total];
+    int n = 0;
+    for (Match match : community) {
+      for (int j = 0; j < match.size(); j++) {
+        all[n] = ((long) match.getMatchIndex(j) << 32) | n;
+        n++;
+      }
+    }
+    Arrays.sort(all);
+    int[] distinctControls = new int[total];
+    this.candidateColumns = new int[total];
+    int distinct = 0;
+    for (int i = 0; i < all.length; i++) {
+      int control = (int) (all[i] >>> 32);
+      if (i == 0 || control != distinctControls[distinct - 1]) {
+        distinctControls[distinct++] = control;
+      }
+      candidateColumns[(int) all[i]] = distinct - 1;
+    }
+    this.controls = Arrays.copyOf(distinctControls, distinct);
+  }
+
+  /**
+   * @return the number of distinct controls
+   */
+  int size() {
+    return controls.length;
+  }
+
+  /**
+   * @return the store index of the control in the given column
+   */
+  int getControl(int column) {
+    return controls[column];
+  }
+
+  /**
+   * @return the column of the control with the given store index, or a negative value if it is not
+   *         one of this community's controls
+   */
+  int getColumn(int control) {
+    return Arrays.binarySearch(controls, control);
+  }
+
+  /**
+   * @param caseIndex position of a case in the community
+   * @param j position of a candidate among the case's matches
+   * @return the column of the candidate
+   */
+  int getColumn(int caseIndex, int j) {
+    return candidateColumns[offsets[caseIndex] + j];
+  }
+}
@@ -1,6 +1,9 @@
 package org.pankratzlab.kdmatch;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -39,13 +42,24 @@ class CommunityDetectionGraph {
   }
 
   private void DFSUtil(int v, boolean[] visited, List<Integer> current) {
-    // Mark the current node as visited and print it
+    // Iterative, so that long chains of connected vertices do not overflow the stack. Vertices are
+    // visited in the same order as a recursive depth first search
+    Deque<Iterator<Integer>> stack = new ArrayDeque<>();
     visited[v] = true;
     current.add(v);
-    // Recur for all the vertices
-    // adjacent to this vertex
-    for (int x : adjListArray.get(v)) {
-      if (!visited[x]) DFSUtil(x, visited, current);
+    stack.push(adjListArray.get(v).iterator());
+    while (!stack.isEmpty()) {
+      Iterator<Integer> adjacent = stack.peek();
+      if (adjacent.hasNext()) {
+        int x = adjacent.next();
+        if (!visited[x]) {
+          visited[x] = true;
+          current.add(x);
+          stack.push(adjListArray.get(x).iterator());
+        }
+      } else {
+        stack.pop();
+      }
     }
 
   }
@@ -0,0 +1,298 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of the selections of each community (or piece of a split community) as it is
+ * optimized, so that a run that is restarted can reuse them rather than optimizing the community
+ * again.
+ * <p>
+ * The file starts with the magic bytes {@code KDJOURN1} and the settings the selections depend on:
+ * the number of controls selected for each case, the number of neighbors queried for each case,
+ * the solver mode, the largest community size, and the time (in nanoseconds, or -1 for none) and
+ * memory budgets. A journal written with other settings is started over. Each record then holds its
+ * length, the cases of the community (by ID, in order) with the flags and the selected controls
+ * (store index and distance) of each, and a CRC32 of the record. Records are forced to the storage
+ * device at least every second, and when the journal is closed. A record cut short by the run being
+ * killed is dropped (and overwritten) when the journal is opened again. A record is only reused for
+ * a community with the same cases, in the same order, whose candidates include every control the
+ * record selects.
+ */
+class CommunityJournal implements Closeable {
+  private static final byte[] MAGIC = "KDJOURN1".getBytes(StandardCharsets.US_ASCII);
+  // records are forced to the storage device at most this often, as forcing each would be slow
+  private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int HUNGARIAN_FLAG = 1;
+  private static final int OPTIMAL_FLAG = 2;
+
+  // records of previous runs, by the ID of the first case of the community
+  private final Map<String, Record> records;
+  private final FileChannel channel;
+  private final Logger log;
+  private int reused = 0;
+  private long lastForced = System.nanoTime();
+
+  private CommunityJournal(Map<String, Record> records, FileChannel channel, Logger log) {
+    super();
+    this.records = records;
+    this.channel = channel;
+    this.log = log;
+  }
+
+  /**
+   * Open the journal, reading the records written by previous runs
+   *
+   * @param numSelect number of controls selected for each case
+   * @param numNeighbors number of nearest neighbors queried for each case
+   * @param options settings of the optimization. A journal written with another number of
+   *          selections or neighbors, or other settings, is started over
+   */
+  static CommunityJournal open(Path path, int numSelect, int numNeighbors,
+                               OptimizerOptions options, Logger log) throws IOException {
+    byte[] header = header(numSelect, numNeighbors, options);
+    Map<String, Record> records = new HashMap<>();
+    long validLength = 0;
+    if (Files.isRegularFile(path)) {
+      InputStream file = new BufferedInputStream(Files.newInputStream(path));
+      try (DataInputStream in = new DataInputStream(file)) {
+        validLength = read(in, Files.size(path), header, records);
+      }
+      if (validLength == 0) {
+        log.log(Level.WARNING,
+                "Starting over the journal {0}, which is incomplete or was written with other "
+                                + "settings",
+                path);
+      } else {
+        log.log(Level.INFO, "found {0} optimized communities in the journal {1}",
+                new Object[] {records.size(), path});
+      }
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                           StandardOpenOption.WRITE);
+    try {
+      // drop anything after the last complete record
+      channel.truncate(validLength);
+      channel.position(validLength);
+      if (validLength == 0) {
+        write(channel, ByteBuffer.wrap(header));
+        channel.force(false);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return new CommunityJournal(records, channel, log);
+  }
+
+  /**
+   * @return the magic bytes and the settings the selections depend on
+   */
+  private static byte[] header(int numSelect, int numNeighbors,
+                               OptimizerOptions options) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write(MAGIC);
+    out.writeInt(numSelect);
+    out.writeInt(numNeighbors);
+    out.writeUTF(options.getMode().name());
+    out.writeInt(options.getMaxCommunitySize());
+    out.writeLong(toNanos(options.getCommunityTimeBudget()));
+    out.writeLong(toNanos(options.getTotalTimeBudget()));
+    out.writeLong(options.getMemoryBudget());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static long toNanos(Duration budget) {
+    return budget == null ? -1 : budget.toNanos();
+  }
+
+  /**
+   * @return the length of the header and the complete records, or 0 if the header does not match
+   */
+  private static long read(DataInputStream in, long fileSize, byte[] header,
+                           Map<String, Record> records) throws IOException {
+    long length = 0;
+    try {
+      byte[] written = new byte[header.length];
+      in.readFully(written);
+      if (!Arrays.equals(written, header)) {
+        return 0;
+      }
+      length = header.length;
+      while (true) {
+        int size = in.readInt();
+        if (size < 0 || length + Integer.BYTES + size + Long.BYTES > fileSize) {
+          return length;
+        }
+        byte[] payload = new byte[size];
+        in.readFully(payload);
+        long checksum = in.readLong();
+        if (checksum != checksum(payload)) {
+          return length;
+        }
+        Record record = Record.parse(payload);
+        if (record.ids.length > 0) {
+          records.put(record.ids[0], record);
+        }
+        length += Integer.BYTES + size + Long.BYTES;
+      }
+    } catch (EOFException e) {
+      // the header or the last record is incomplete
+      return length;
+    }
+  }
+
+  private static long checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return crc.getValue();
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * @param community the candidates of each case of the community
+   * @return the selections recorded for the community by a previous run, in the same order as the
+   *         cases, or null if there are none
+   */
+  List<Match> lookup(List<Match> community) {
+    if (community.isEmpty()) {
+      return null;
+    }
+    Record record = records.get(community.get(0).sample.getID());
+    if (record == null || record.ids.length != community.size()) {
+      return null;
+    }
+    List<Match> selections = new ArrayList<>(community.size());
+    for (int i = 0; i < community.size(); i++) {
+      Match candidates = community.get(i);
+      if (!record.ids[i].equals(candidates.sample.getID())) {
+        return null;
+      }
+      Match selection = candidates.emptyCopy();
+      for (int j = 0; j < record.controls[i].length; j++) {
+        if (!candidates.hasMatch(record.controls[i][j])) {
+          return null;
+        }
+        selection.addMatch(record.controls[i][j], record.distances[i][j]);
+      }
+      selection.setHungarian((record.flags[i] & HUNGARIAN_FLAG) != 0);
+      selection.setOptimal((record.flags[i] & OPTIMAL_FLAG) != 0);
+      selections.add(selection);
+    }
+    synchronized (this) {
+      reused++;
+    }
+    return selections;
+  }
+
+  /**
+   * Append the selections of a community to the journal
+   *
+   * @param selections the selections of each case of the community
+   */
+  synchronized void record(List<Match> selections) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(selections.size());
+    for (Match selection : selections) {
+      out.writeUTF(selection.sample.getID());
+      out.writeInt((selection.isHungarian() ? HUNGARIAN_FLAG : 0)
+                   | (selection.isOptimal() ? OPTIMAL_FLAG : 0));
+      out.writeInt(selection.size());
+      for (int j = 0; j < selection.size(); j++) {
+        out.writeInt(selection.getMatchIndex(j));
+        out.writeDouble(selection.getDistance(j));
+      }
+    }
+    out.flush();
+    byte[] payload = bytes.toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + payload.length + Long.BYTES);
+    buffer.putInt(payload.length);
+    buffer.put(payload);
+    buffer.putLong(checksum(payload));
+    buffer.flip();
+    write(channel, buffer);
+    if (System.nanoTime() - lastForced >= FORCE_INTERVAL_NANOS) {
+      channel.force(false);
+      lastForced = System.nanoTime();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (reused > 0) {
+      log.log(Level.INFO, "reused the selections of {0} communities optimized by a previous run",
+              reused);
+    }
+    try {
+      channel.force(false);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * The selections of one community
+   */
+  private static class Record {
+    final String[] ids;
+    final int[] flags;
+    final int[][] controls;
+    final double[][] distances;
+
+    private Record(int numCases) {
+      this.ids = new String[numCases];
+      this.flags = new int[numCases];
+      this.controls = new int[numCases][];
+      this.distances = new double[numCases][];
+    }
+
+    static Record parse(byte[] payload) throws IOException {
+      InputStream bytes = new ByteArrayInputStream(payload);
+      DataInputStream in = new DataInputStream(bytes);
+      Record record = new Record(in.readInt());
+      for (int i = 0; i < record.ids.length; i++) {
+        record.ids[i] = in.readUTF();
+        record.flags[i] = in.readInt();
+        int size = in.readInt();
+        record.controls[i] = new int[size];
+        record.distances[i] = new double[size];
+        for (int j = 0; j < size; j++) {
+          record.controls[i][j] = in.readInt();
+          record.distances[i][j] = in.readDouble();
+        }
+      }
+      return record;
+    }
+  }
+}
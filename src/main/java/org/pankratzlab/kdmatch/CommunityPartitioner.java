@@ -0,0 +1,193 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits communities that are too large to solve as a whole into smaller pieces that can be solved
+ * independently (and in parallel), by cutting the weakest links first.
+ * <p>
+ * Two cases are linked when they share a control; a link is weak when the shared control only
+ * appears far down the neighbor lists. A community is split at the largest neighbor rank r for
+ * which linking cases only through their nearest r candidates leaves more than one piece, and
+ * pieces that are still too large are split again. Small pieces are packed back together up to
+ * the maximum size. A piece that cannot be split this way (every case shares its nearest neighbor)
+ * is cut spatially instead, along its widest dimension.
+ * <p>
+ * Controls shared between pieces may be selected by more than one piece, so the combined selections
+ * must be repaired afterwards (see {@link GreedyMatcher#getRepairedMatches(List, int, List)}).
+ */
+class CommunityPartitioner {
+  private CommunityPartitioner() {}
+
+  /**
+   * @param community matches connected by shared controls
+   * @param maxSize largest number of cases in a piece
+   * @return the pieces, each holding at most maxSize cases (the community itself if it is not too
+   *         large)
+   */
+  static List<List<Match>> split(List<Match> community, int maxSize) {
+    List<List<Match>> pieces = new ArrayList<>();
+    List<List<Match>> toSplit = new ArrayList<>();
+    toSplit.add(community);
+    while (!toSplit.isEmpty()) {
+      List<Match> current = toSplit.remove(toSplit.size() - 1);
+      if (current.size() <= maxSize) {
+        pieces.add(current);
+        continue;
+      }
+      List<List<Match>> split = splitAtWeakestLinks(current);
+      if (split.size() == 1) {
+        pieces.addAll(splitSpatially(current, maxSize));
+        continue;
+      }
+      // the cut often separates many small components, which are packed back together (solving
+      // them jointly can only avoid conflicts) while they fit
+      List<Match> packed = new ArrayList<>();
+      for (List<Match> component : split) {
+        if (component.size() > maxSize) {
+          toSplit.add(component);
+        } else {
+          if (packed.size() + component.size() > maxSize) {
+            pieces.add(packed);
+            packed = new ArrayList<>();
+          }
+          packed.addAll(component);
+        }
+      }
+      if (!packed.isEmpty()) {
+        pieces.add(packed);
+      }
+    }
+    return pieces;
+  }
+
+  /**
+   * @return the components of the community when cases are only linked through their nearest
+   *         maxRank candidates, for the largest maxRank that gives more than one component (or the
+   *         community itself, if there is none)
+   */
+  private static List<List<Match>> splitAtWeakestLinks(List<Match> community) {
+    int maxRank = 0;
+    for (Match match : community) {
+      maxRank = Math.max(maxRank, match.size());
+    }
+    CommunityControls controls = new CommunityControls(community);
+    // the number of components only decreases as the rank increases, so search for the largest
+    // rank that still splits the community
+    int low = 1;
+    int high = maxRank - 1;
+    int best = -1;
+    while (low <= high) {
+      int rank = (low + high) >>> 1;
+      if (countComponents(getComponents(community, controls, rank)) > 1) {
+        best = rank;
+        low = rank + 1;
+      } else {
+        high = rank - 1;
+      }
+    }
+    if (best < 0) {
+      return Arrays.asList(community);
+    }
+    int[] components = getComponents(community, controls, best);
+    List<List<Match>> split = new ArrayList<>();
+    int[] pieceOfComponent = new int[community.size()];
+    Arrays.fill(pieceOfComponent, -1);
+    for (int i = 0; i < community.size(); i++) {
+      int component = components[i];
+      if (pieceOfComponent[component] == -1) {
+        pieceOfComponent[component] = split.size();
+        split.add(new ArrayList<>());
+      }
+      split.get(pieceOfComponent[component]).add(community.get(i));
+    }
+    return split;
+  }
+
+  /**
+   * @return the component (as the index of its root case) of each case, when cases are only linked
+   *         through their nearest rank candidates
+   */
+  private static int[] getComponents(List<Match> community, CommunityControls controls, int rank) {
+    int[] parent = new int[community.size()];
+    for (int i = 0; i < parent.length; i++) {
+      parent[i] = i;
+    }
+    int[] firstCase = new int[controls.size()];
+    Arrays.fill(firstCase, -1);
+    for (int i = 0; i < community.size(); i++) {
+      Match match = community.get(i);
+      for (int j = 0; j < Math.min(rank, match.size()); j++) {
+        int column = controls.getColumn(i, j);
+        if (firstCase[column] == -1) {
+          firstCase[column] = i;
+        } else {
+          union(parent, i, firstCase[column]);
+        }
+      }
+    }
+    for (int i = 0; i < parent.length; i++) {
+      parent[i] = find(parent, i);
+    }
+    return parent;
+  }
+
+  private static int countComponents(int[] components) {
+    int count = 0;
+    for (int i = 0; i < components.length; i++) {
+      if (components[i] == i) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  private static void union(int[] parent, int i, int j) {
+    int rootI = find(parent, i);
+    int rootJ = find(parent, j);
+    if (rootI != rootJ) {
+      parent[Math.max(rootI, rootJ)] = Math.min(rootI, rootJ);
+    }
+  }
+
+  /**
+   * Cut the community into consecutive pieces of at most maxSize cases, ordered along the dimension
+   * with the largest spread
+   */
+  private static List<List<Match>> splitSpatially(List<Match> community, int maxSize) {
+    int dims = community.get(0).sample.dim.length;
+    int widest = 0;
+    double widestSpread = -1;
+    for (int d = 0; d < dims; d++) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (Match match : community) {
+        min = Math.min(min, match.sample.dim[d]);
+        max = Math.max(max, match.sample.dim[d]);
+      }
+      if (max - min > widestSpread) {
+        widestSpread = max - min;
+        widest = d;
+      }
+    }
+    final int dimension = widest;
+    List<Match> sorted = new ArrayList<>(community);
+    sorted.sort(Comparator.comparingDouble(m -> m.sample.dim[dimension]));
+    List<List<Match>> split = new ArrayList<>();
+    for (int from = 0; from < sorted.size(); from += maxSize) {
+      split.add(new ArrayList<>(sorted.subList(from, Math.min(from + maxSize, sorted.size()))));
+    }
+    return split;
+  }
+}
@@ -0,0 +1,119 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs independent units of work (e.g. communities of matches) on a work-stealing pool, dispatching
+ * the most expensive units first so that a single large unit does not start last and run alone at
+ * the end. Progress is reported as the fraction of total estimated work that has completed.
+ */
+class CommunityScheduler {
+  // report progress every time another 10% of the estimated work completes
+  private static final int PROGRESS_STEPS = 10;
+
+  private CommunityScheduler() {}
+
+  /**
+   * @param tasks the units of work to run
+   * @param costEstimator estimated (relative) cost of each unit, used for ordering and progress
+   * @param solver applied to each unit
+   * @param threads number of worker threads
+   * @param log
+   * @return the results of the solver, in the same order as the input tasks
+   */
+  static <T, R> List<R> run(List<T> tasks, ToLongFunction<T> costEstimator,
+                            Function<T, R> solver, int threads,
+                            Logger log) throws InterruptedException, ExecutionException {
+    final int n = tasks.size();
+    final long[] costs = new long[n];
+    long totalCost = 0;
+    for (int i = 0; i < n; i++) {
+      costs[i] = Math.max(1, costEstimator.applyAsLong(tasks.get(i)));
+      totalCost += costs[i];
+    }
+    // largest first
+    final Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingLong((Integer i) -> costs[i]).reversed());
+    if (n > 0) {
+      log.log(Level.INFO, "Scheduling {0} units of work, largest estimated cost {1} of {2} total",
+              new Object[] {n, costs[order[0]], totalCost});
+    }
+
+    final Object[] results = new Object[n];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicLong completedCost = new AtomicLong();
+    final AtomicInteger completedTasks = new AtomicInteger();
+    final AtomicInteger reportedStep = new AtomicInteger();
+    final long total = totalCost;
+
+    // set when a unit fails, so the other workers stop rather than finishing the remaining units
+    final AtomicBoolean failed = new AtomicBoolean();
+
+    // Each worker pulls the next largest remaining unit as soon as it is free
+    Runnable worker = () -> {
+      int i;
+      while (!failed.get() && (i = next.getAndIncrement()) < n) {
+        if (Thread.currentThread().isInterrupted()) {
+          // e.g. the pool was shut down, after another worker failed or the caller was interrupted
+          failed.set(true);
+          throw new CancellationException("Interrupted before completing every unit");
+        }
+        int task = order[i];
+        try {
+          results[task] = solver.apply(tasks.get(task));
+        } catch (RuntimeException | Error e) {
+          failed.set(true);
+          throw e;
+        }
+        long done = completedCost.addAndGet(costs[task]);
+        int finished = completedTasks.incrementAndGet();
+        int step = (int) (PROGRESS_STEPS * done / total);
+        int last = reportedStep.get();
+        if (step > last && reportedStep.compareAndSet(last, step)) {
+          log.log(Level.INFO,
+                  "Completed {0} of {1} units ({2}% of estimated work, {3} estimated work remaining)",
+                  new Object[] {finished, n, 100 * done / total, total - done});
+        }
+      }
+    };
+
+    int workers = Math.max(1, Math.min(threads, n));
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      List<Future<?>> futures = new ArrayList<>(workers);
+      for (int w = 0; w < workers; w++) {
+        futures.add(pool.submit(worker));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    List<R> ordered = new ArrayList<>(n);
+    for (Object result : results) {
+      @SuppressWarnings("unchecked")
+      R r = (R) result;
+      ordered.add(r);
+    }
+    return ordered;
+  }
+}
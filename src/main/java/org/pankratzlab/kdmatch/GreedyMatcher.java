@@ -0,0 +1,288 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast, feasible (but not necessarily optimal) selection of controls without replacement. All
+ * candidate (case, control, distance) edges are sorted by distance and assigned in that order,
+ * skipping controls that have already been taken and cases that already have enough controls. This
+ * is O(E log E) in the number of candidate edges, rather than O(n^3) for the Hungarian algorithm.
+ * <p>
+ * The greedy selection can optionally be refined with local improvements until none remain:
+ * <ul>
+ * <li>a case that is short of controls takes a control from another case, which in turn takes one
+ * from another case and so on, until a case can move to a free candidate</li>
+ * <li>two cases exchange a control each, if that lowers their total distance</li>
+ * </ul>
+ */
+class GreedyMatcher {
+  // guards against cycling on floating point noise
+  private static final double MIN_IMPROVEMENT = 1e-12;
+  // upper bound on the number of refinement passes over a community
+  private static final int MAX_PASSES = 100;
+
+  private final List<Match> matches;
+  private final int numSelect;
+  private final CommunityControls controls;
+  // per case: the local columns of its candidates, sorted, and the distance to each
+  private final int[][] sortedColumns;
+  private final double[][] sortedDistances;
+  // the case holding each column, or -1 if free
+  private final int[] owner;
+  // number of controls held by each case
+  private final int[] held;
+
+  private GreedyMatcher(List<Match> matches, int numSelect) {
+    this.matches = matches;
+    this.numSelect = numSelect;
+    this.controls = new CommunityControls(matches);
+    this.sortedColumns = new int[matches.size()][];
+    this.sortedDistances = new double[matches.size()][];
+    for (int i = 0; i < matches.size(); i++) {
+      Match match = matches.get(i);
+      long[] columnPositions = new long[match.size()];
+      for (int j = 0; j < match.size(); j++) {
+        columnPositions[j] = ((long) controls.getColumn(i, j) << 32) | j;
+      }
+      Arrays.sort(columnPositions);
+      sortedColumns[i] = new int[match.size()];
+      sortedDistances[i] = new double[match.size()];
+      for (int j = 0; j < match.size(); j++) {
+        sortedColumns[i][j] = (int) (columnPositions[j] >>> 32);
+        sortedDistances[i][j] = match.getDistance((int) columnPositions[j]);
+      }
+    }
+    this.owner = new int[controls.size()];
+    Arrays.fill(owner, -1);
+    this.held = new int[matches.size()];
+  }
+
+  private static class Edge {
+    private final int match;
+    private final int column;
+    private final double distance;
+
+    private Edge(int match, int column, double distance) {
+      this.match = match;
+      this.column = column;
+      this.distance = distance;
+    }
+  }
+
+  /**
+   * @param matches matches (potentially sharing controls) to select from
+   * @param numSelect number of controls to select for each case
+   * @return new matches, in the same order as the input, holding at most numSelect controls each
+   *         ordered by distance
+   */
+  static List<Match> getGreedyMatches(List<Match> matches, int numSelect) {
+    GreedyMatcher greedy = new GreedyMatcher(matches, numSelect);
+    greedy.assignGreedily(matches);
+    return greedy.getMatches();
+  }
+
+  /**
+   * As {@link #getGreedyMatches(List, int)}, followed by local improvements until none remain
+   */
+  static List<Match> getRefinedMatches(List<Match> matches, int numSelect) {
+    GreedyMatcher greedy = new GreedyMatcher(matches, numSelect);
+    greedy.assignGreedily(matches);
+    greedy.refine();
+    return greedy.getMatches();
+  }
+
+  /**
+   * Combine selections that may conflict (e.g. made independently for separate pieces of a
+   * community) into a selection without replacement: a control selected more than once is kept by
+   * the nearest case selecting it, and the selections are then refined as in
+   * {@link #getRefinedMatches(List, int)}, which refills the cases that lost a control
+   *
+   * @param matches matches (potentially sharing controls) to select from
+   * @param numSelect number of controls to select for each case
+   * @param selections the selections to repair, in the same order as the matches
+   * @return new matches, in the same order as the input, holding at most numSelect controls each
+   *         ordered by distance
+   */
+  static List<Match> getRepairedMatches(List<Match> matches, int numSelect,
+                                        List<Match> selections) {
+    GreedyMatcher greedy = new GreedyMatcher(matches, numSelect);
+    greedy.assignGreedily(selections);
+    greedy.refine();
+    return greedy.getMatches();
+  }
+
+  private void refine() {
+    for (int pass = 0; pass < MAX_PASSES; pass++) {
+      boolean improved = fillShortCases();
+      improved |= swapPairs();
+      if (!improved) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @param edgesPerCase per case (in the same order as the matches), the controls it may be
+   *          assigned
+   */
+  private void assignGreedily(List<Match> edgesPerCase) {
+    List<Edge> edges = new ArrayList<>();
+    for (int i = 0; i < edgesPerCase.size(); i++) {
+      Match match = edgesPerCase.get(i);
+      for (int j = 0; j < match.size(); j++) {
+        edges.add(new Edge(i, controls.getColumn(match.getMatchIndex(j)), match.getDistance(j)));
+      }
+    }
+    // stable sort, so ties are broken by case order and then by neighbor rank
+    edges.sort((e1, e2) -> Double.compare(e1.distance, e2.distance));
+
+    for (Edge edge : edges) {
+      if (held[edge.match] < numSelect && owner[edge.column] == -1) {
+        owner[edge.column] = edge.match;
+        held[edge.match]++;
+      }
+    }
+  }
+
+  /**
+   * @return the distance from case i to the control in the given column, or NaN if it is not one of
+   *         its candidates
+   */
+  private double getDistance(int i, int column) {
+    int position = Arrays.binarySearch(sortedColumns[i], column);
+    return position < 0 ? Double.NaN : sortedDistances[i][position];
+  }
+
+  /**
+   * For each case short of controls, search (breadth first) for a chain of cases, each of which can
+   * give its control to the previous one and take a candidate held by the next, that ends at a free
+   * control. Shifting controls along the chain gives the short case one more control, without any
+   * other case losing one
+   *
+   * @return true if any case gained a control
+   */
+  private boolean fillShortCases() {
+    boolean improved = false;
+    int n = matches.size();
+    int[] parentCase = new int[n];
+    int[] parentColumn = new int[n];
+    int[] visited = new int[n];
+    int[] queue = new int[n];
+    int search = 0;
+    for (int b = 0; b < n; b++) {
+      while (held[b] < numSelect) {
+        search++;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = b;
+        visited[b] = search;
+        int freeCase = -1;
+        int freeColumn = -1;
+        while (head < tail && freeColumn < 0) {
+          int x = queue[head++];
+          Match match = matches.get(x);
+          for (int j = 0; j < match.size(); j++) {
+            int column = controls.getColumn(match.getMatchIndex(j));
+            int y = owner[column];
+            if (y == -1) {
+              freeCase = x;
+              freeColumn = column;
+              break;
+            }
+            if (visited[y] != search) {
+              visited[y] = search;
+              parentCase[y] = x;
+              parentColumn[y] = column;
+              queue[tail++] = y;
+            }
+          }
+        }
+        if (freeColumn < 0) {
+          break;
+        }
+        // shift controls back along the chain
+        int x = freeCase;
+        int column = freeColumn;
+        while (x != b) {
+          owner[column] = x;
+          column = parentColumn[x];
+          x = parentCase[x];
+        }
+        owner[column] = b;
+        held[b]++;
+        improved = true;
+      }
+    }
+    return improved;
+  }
+
+  /**
+   * Exchange controls between pairs of cases (or move to a free control) wherever that lowers the
+   * total distance
+   *
+   * @return true if any exchange was made
+   */
+  private boolean swapPairs() {
+    boolean improved = false;
+    for (int a = 0; a < matches.size(); a++) {
+      int[] columnsA = sortedColumns[a];
+      for (int p = 0; p < columnsA.length; p++) {
+        int held1 = columnsA[p];
+        if (owner[held1] != a) {
+          continue;
+        }
+        double current = sortedDistances[a][p];
+        // look for the most improving exchange of held1 for another of a's candidates
+        int bestColumn = -1;
+        double bestGain = MIN_IMPROVEMENT;
+        for (int q = 0; q < columnsA.length; q++) {
+          int held2 = columnsA[q];
+          int b = owner[held2];
+          if (b == a) {
+            continue;
+          }
+          double gain = current - sortedDistances[a][q];
+          if (b != -1) {
+            double distanceB = getDistance(b, held1);
+            if (Double.isNaN(distanceB)) {
+              continue;
+            }
+            gain += getDistance(b, held2) - distanceB;
+          }
+          if (gain > bestGain) {
+            bestGain = gain;
+            bestColumn = held2;
+          }
+        }
+        if (bestColumn >= 0) {
+          owner[held1] = owner[bestColumn];
+          owner[bestColumn] = a;
+          improved = true;
+        }
+      }
+    }
+    return improved;
+  }
+
+  private List<Match> getMatches() {
+    List<Match> selected = new ArrayList<>(matches.size());
+    // candidates are ordered by distance, so each selection will be too
+    for (int i = 0; i < matches.size(); i++) {
+      Match match = matches.get(i);
+      Match selection = match.emptyCopy();
+      for (int j = 0; j < match.size(); j++) {
+        if (owner[controls.getColumn(match.getMatchIndex(j))] == i) {
+          selection.addMatch(match.getMatchIndex(j), match.getDistance(j));
+          // Check if the order of controls has been updated for this matching
+          if (j != selection.size() - 1) {
+            selection.setHungarian(true);
+          }
+        }
+      }
+      selected.add(selection);
+    }
+    return selected;
+  }
+}
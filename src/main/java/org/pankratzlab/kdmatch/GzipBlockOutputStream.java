@@ -0,0 +1,170 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip compressed output, compressing in the background while the caller keeps writing.
+ * <p>
+ * Output is collected in large blocks, and each block is compressed on its own (as a separate gzip
+ * member) by a small pool of threads. The compressed blocks are written to the file in order, so
+ * the file is a valid gzip file (gzip, zcat and {@link java.util.zip.GZIPInputStream} read the
+ * concatenated members as one stream), at the cost of a slightly worse compression ratio than a
+ * single stream. Since files can be appended to this way as well, opening an existing file in
+ * append mode adds to it rather than overwriting it.
+ */
+class GzipBlockOutputStream extends OutputStream {
+  // uncompressed size of each block
+  static final int BLOCK_SIZE = 1 << 20;
+  // size of the deflater's output buffer
+  private static final int DEFLATE_BUFFER_SIZE = 64 << 10;
+
+  private final OutputStream out;
+  private final ExecutorService compressors;
+  // blocks being compressed, in the order they are written
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+  private final int maxPending;
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int count = 0;
+  private boolean closed = false;
+
+  /**
+   * @param output the file to write to
+   * @param append true to add to the end of an existing file rather than overwrite it
+   */
+  GzipBlockOutputStream(String output, boolean append) throws IOException {
+    this(new FileOutputStream(output, append),
+         Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+  }
+
+  /**
+   * @param out the stream the compressed blocks are written to, closed when this stream is closed
+   * @param threads number of blocks compressed at the same time
+   */
+  GzipBlockOutputStream(OutputStream out, int threads) {
+    super();
+    this.out = out;
+    this.compressors = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "gzip-compressor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // keep every thread busy while the next blocks are filled, without holding on to more than a
+    // few blocks
+    this.maxPending = 2 * threads;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == block.length) {
+      submitBlock();
+    }
+    block[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == block.length) {
+        submitBlock();
+      }
+      int n = Math.min(len, block.length - count);
+      System.arraycopy(b, off, block, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Hand the current block to the compressors, first writing out finished blocks if too many are
+   * pending
+   */
+  private void submitBlock() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (count == 0) {
+      return;
+    }
+    final byte[] full = block;
+    final int length = count;
+    pending.add(compressors.submit(() -> compress(full, length)));
+    block = new byte[BLOCK_SIZE];
+    count = 0;
+    while (pending.size() >= maxPending) {
+      writeNext();
+    }
+  }
+
+  private static byte[] compress(byte[] data, int length) throws IOException {
+    // compressed output is rarely more than a third of the input for this kind of data
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 3 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, DEFLATE_BUFFER_SIZE)) {
+      gzip.write(data, 0, length);
+    }
+    return compressed.toByteArray();
+  }
+
+  private void writeNext() throws IOException {
+    try {
+      out.write(pending.remove().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not compress output", e.getCause());
+    }
+  }
+
+  /**
+   * Only writes out blocks that are full, since every block is compressed separately; everything
+   * is written when the stream is closed
+   */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Stop without writing the blocks that have not been written yet, and close the underlying
+   * stream. The output is left incomplete (possibly ending partway through a line)
+   */
+  void abort() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    pending.forEach(f -> f.cancel(true));
+    pending.clear();
+    compressors.shutdownNow();
+    out.close();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      submitBlock();
+      while (!pending.isEmpty()) {
+        writeNext();
+      }
+    } finally {
+      closed = true;
+      pending.forEach(f -> f.cancel(true));
+      compressors.shutdownNow();
+      out.close();
+    }
+  }
+}
@@ -1,6 +1,12 @@
 package org.pankratzlab.kdmatch;
 
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,10 +50,24 @@ import java.util.logging.Logger;
  * 
  * This version of the Hungarian algorithm runs in time O(n^3), where n is the maximum among the
  * number of workers and the number of jobs.
+ * <p>
+ * 
+ * For large matrices, the O(n) scans over jobs within a phase and the O(n^2) reduction and initial
+ * labeling are split into chunks that are run in parallel, on the fork-join pool of the calling
+ * thread (or the common pool). Minimum slack ties are always broken by the lowest job, so results
+ * are identical to the sequential scans.
  * 
  * @author Kevin L. Stern
  */
 class HungarianAlgorithm {
+  // seeded labels at least this large (e.g. from costs of Double.MAX_VALUE) are treated as unknown,
+  // so that the sum of a cost and two labels can not overflow
+  private static final double MAX_SEED_LABEL = Double.MAX_VALUE / 4;
+  // smallest dimension for which scans are run in parallel
+  static final int PARALLEL_THRESHOLD = 8192;
+  // number of jobs (or workers) scanned by a single parallel task
+  private static final int CHUNK_SIZE = 2048;
+
   private final double[][] costMatrix;
   private final int rows, cols, dim;
   private final double[] labelByWorker, labelByJob;
@@ -57,38 +77,55 @@ class HungarianAlgorithm {
   private final int[] parentWorkerByCommittedJob;
   private final boolean[] committedWorkers;
   private final Logger log;
+  private final int chunks;
+  // what reduce() subtracted from each row and column, to express labels in terms of the original
+  // costs
+  private final double[] rowOffsets, columnOffsets;
+  // labels (in terms of the original costs) and matching to start from, null for a cold start
+  private double[] seedWorkerLabels, seedJobLabels;
+  private int[] seedJobByWorker;
+  // progress is reported to the listener at most once per interval, and once on completion
+  private Consumer<HungarianProgress> progressListener;
+  private long progressIntervalNanos;
+  private long phases;
+  private long labelUpdates;
 
   /**
    * Construct an instance of the algorithm.
    * 
    * @param costMatrix the cost matrix, where matrix[i][j] holds the cost of assigning worker i to
    *          job j, for all i, j. The cost matrix must not be irregular in the sense that all rows
-   *          must be the same length; in addition, all entries must be non-infinite numbers.
+   *          must be the same length; in addition, all entries must be non-infinite numbers. Rows
+   *          are copied, so the same row array may be passed for several workers.
    */
   public HungarianAlgorithm(double[][] costMatrix, Logger log) {
     this.dim = Math.max(costMatrix.length, costMatrix[0].length);
     this.rows = costMatrix.length;
     this.cols = costMatrix[0].length;
-    this.costMatrix = new double[this.dim][this.dim];
+    this.costMatrix = new double[this.dim][];
     this.log = log;
-    for (int w = 0; w < this.dim; w++) {
-      if (w < costMatrix.length) {
-        if (costMatrix[w].length != this.cols) {
-          throw new IllegalArgumentException("Irregular cost matrix");
-        }
-        for (int j = 0; j < this.cols; j++) {
-          if (Double.isInfinite(costMatrix[w][j])) {
-            throw new IllegalArgumentException("Infinite cost");
+    this.chunks = dim < PARALLEL_THRESHOLD ? 1 : (dim + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    // chunks of rows
+    forEachChunk(c -> {
+      for (int w = chunkStart(c); w < chunkEnd(c); w++) {
+        if (w < costMatrix.length) {
+          if (costMatrix[w].length != this.cols) {
+            throw new IllegalArgumentException("Irregular cost matrix");
           }
-          if (Double.isNaN(costMatrix[w][j])) {
-            throw new IllegalArgumentException("NaN cost");
+          for (int j = 0; j < this.cols; j++) {
+            if (Double.isInfinite(costMatrix[w][j])) {
+              throw new IllegalArgumentException("Infinite cost");
+            }
+            if (Double.isNaN(costMatrix[w][j])) {
+              throw new IllegalArgumentException("NaN cost");
+            }
           }
+          this.costMatrix[w] = Arrays.copyOf(costMatrix[w], this.dim);
+        } else {
+          this.costMatrix[w] = new double[this.dim];
         }
-        this.costMatrix[w] = Arrays.copyOf(costMatrix[w], this.dim);
-      } else {
-        this.costMatrix[w] = new double[this.dim];
       }
-    }
+    });
     labelByWorker = new double[this.dim];
     labelByJob = new double[this.dim];
     minSlackWorkerByJob = new int[this.dim];
@@ -99,6 +136,90 @@ class HungarianAlgorithm {
     Arrays.fill(matchJobByWorker, -1);
     matchWorkerByJob = new int[this.dim];
     Arrays.fill(matchWorkerByJob, -1);
+    rowOffsets = new double[this.dim];
+    columnOffsets = new double[this.dim];
+  }
+
+  /**
+   * Start from the labels and matching of a previous solution to a similar problem (e.g. with a few
+   * workers or jobs added or removed), rather than from scratch. The labels are repaired to be
+   * feasible for this cost matrix and only the matched pairs that are still tight are kept, so the
+   * result is optimal whatever the seed; the closer the seed, the fewer phases are left to run.
+   * 
+   * @param workerLabels label of each worker, in terms of the costs (see
+   *          {@link #getWorkerLabels()}), or NaN if unknown. Length of at least the dimension of
+   *          the (padded, square) cost matrix
+   * @param jobLabels label of each job, or NaN if unknown
+   * @param jobByWorker job matched to each worker, or -1 if none
+   */
+  public void seed(double[] workerLabels, double[] jobLabels, int[] jobByWorker) {
+    this.seedWorkerLabels = workerLabels;
+    this.seedJobLabels = jobLabels;
+    this.seedJobByWorker = jobByWorker;
+  }
+
+  /**
+   * @return the label of each worker of the last execution, in terms of the original costs, i.e.
+   *         labelByWorker[w] + labelByJob[j] <= cost[w][j] with equality for matched pairs. Length
+   *         of the dimension of the (padded, square) cost matrix
+   */
+  public double[] getWorkerLabels() {
+    double[] labels = new double[dim];
+    for (int w = 0; w < dim; w++) {
+      labels[w] = labelByWorker[w] + rowOffsets[w];
+    }
+    return labels;
+  }
+
+  /**
+   * @return the label of each job of the last execution, see {@link #getWorkerLabels()}
+   */
+  public double[] getJobLabels() {
+    double[] labels = new double[dim];
+    for (int j = 0; j < dim; j++) {
+      labels[j] = labelByJob[j] + columnOffsets[j];
+    }
+    return labels;
+  }
+
+  /**
+   * @return the job matched to each worker of the last execution, including padded workers and
+   *         jobs (unlike the result of {@link #execute()})
+   */
+  public int[] getMatching() {
+    return Arrays.copyOf(matchJobByWorker, dim);
+  }
+
+  /**
+   * Run the task for each chunk of the range [0, dim), in parallel if the matrix is large enough
+   * 
+   * @param task receives the index of each chunk, see {@link #chunkStart(int)}
+   */
+  private void forEachChunk(IntConsumer task) {
+    if (chunks == 1) {
+      task.accept(0);
+    } else {
+      IntStream.range(0, chunks).parallel().forEach(task);
+    }
+  }
+
+  private int chunkStart(int chunk) {
+    return chunks == 1 ? 0 : chunk * CHUNK_SIZE;
+  }
+
+  private int chunkEnd(int chunk) {
+    return chunks == 1 ? dim : Math.min(dim, (chunk + 1) * CHUNK_SIZE);
+  }
+
+  /**
+   * @param listener receives a {@link HungarianProgress} snapshot at most once per interval while
+   *          the algorithm runs, and once when it completes. Called on the thread executing the
+   *          algorithm, so it should return quickly
+   * @param interval minimum time between snapshots
+   */
+  public void setProgressListener(Consumer<HungarianProgress> listener, Duration interval) {
+    this.progressListener = listener;
+    this.progressIntervalNanos = interval.toNanos();
   }
 
   /**
@@ -106,16 +227,27 @@ class HungarianAlgorithm {
    * to each job a label equal to the minimum cost among its incident edges.
    */
   protected void computeInitialFeasibleSolution() {
-    for (int j = 0; j < dim; j++) {
-      labelByJob[j] = Double.POSITIVE_INFINITY;
-    }
-    for (int w = 0; w < dim; w++) {
-      for (int j = 0; j < dim; j++) {
-        if (costMatrix[w][j] < labelByJob[j]) {
-          labelByJob[j] = costMatrix[w][j];
+    columnMinimums(labelByJob);
+  }
+
+  /**
+   * Store the smallest element of each column of the cost matrix in min. Each chunk of columns is
+   * scanned row by row, so that rows are still read sequentially
+   */
+  private void columnMinimums(double[] min) {
+    forEachChunk(c -> {
+      int start = chunkStart(c);
+      int end = chunkEnd(c);
+      Arrays.fill(min, start, end, Double.POSITIVE_INFINITY);
+      for (int w = 0; w < dim; w++) {
+        double[] row = costMatrix[w];
+        for (int j = start; j < end; j++) {
+          if (row[j] < min[j]) {
+            min[j] = row[j];
+          }
         }
       }
-    }
+    });
   }
 
   /**
@@ -125,28 +257,81 @@ class HungarianAlgorithm {
    *         matching value of -1 indicates that the corresponding worker is unassigned.
    */
   public int[] execute() {
+    try {
+      return execute(false, 0);
+    } catch (TimeoutException e) {
+      // cannot happen without a deadline
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Execute the algorithm, giving up if it has not completed by the specified deadline. The
+   * deadline is checked between phases, so it may be overrun by at most a single phase.
+   * 
+   * @param deadline the deadline, in terms of {@link System#nanoTime()}
+   * @return the minimum cost matching of workers to jobs based upon the provided cost matrix. A
+   *         matching value of -1 indicates that the corresponding worker is unassigned.
+   * @throws TimeoutException if the deadline passed before an optimal matching was found
+   */
+  public int[] execute(long deadline) throws TimeoutException {
+    return execute(true, deadline);
+  }
+
+  private int[] execute(boolean bounded, long deadline) throws TimeoutException {
     /*
      * Heuristics to improve performance: Reduce rows and columns by their smallest element, compute
      * an initial non-zero dual feasible solution and create a greedy matching from workers to jobs
      * of the cost matrix.
      */
-    log.log(Level.INFO, "HungarianAlgorithm execution step: {0}", "reduce");
-    reduce();
-    log.log(Level.INFO, "HungarianAlgorithm execution step: {0}", "computeInitialFeasibleSolution");
-    computeInitialFeasibleSolution();
-    log.log(Level.INFO, "HungarianAlgorithm execution step: {0}", "greedyMatch");
-    greedyMatch();
-
-    log.log(Level.INFO, "HungarianAlgorithm execution step: {0}", "fetchUnmatchedWorker");
+    long start = System.nanoTime();
+    long nextProgress = start + progressIntervalNanos;
+    int matched = -1;
+    if (seedJobByWorker != null) {
+      log.log(Level.FINE, "HungarianAlgorithm execution step: {0}", "warmStart");
+      matched = warmStart();
+    }
+    if (matched < 0) {
+      Arrays.fill(labelByWorker, 0);
+      log.log(Level.FINE, "HungarianAlgorithm execution step: {0}", "reduce");
+      reduce();
+      log.log(Level.FINE, "HungarianAlgorithm execution step: {0}",
+              "computeInitialFeasibleSolution");
+      computeInitialFeasibleSolution();
+      matched = 0;
+    }
+    log.log(Level.FINE, "HungarianAlgorithm execution step: {0}", "greedyMatch");
+    matched += greedyMatch();
+
+    log.log(Level.FINE, "HungarianAlgorithm execution step: {0}", "fetchUnmatchedWorker");
     int w = fetchUnmatchedWorker();
     while (w < dim) {
+      if (bounded && System.nanoTime() - deadline > 0) {
+        throw new TimeoutException("HungarianAlgorithm deadline passed at worker " + w + " of "
+                                   + dim);
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        throw new CancellationException("HungarianAlgorithm interrupted");
+      }
       initializePhase(w);
       executePhase();
+      // each phase grows the matching by one
+      phases++;
+      matched++;
       w = fetchUnmatchedWorker();
 
-      log.log(Level.INFO, "HungarianAlgorithm w val at {0}; dim at {1}; prop at {2}",
-              new Object[] {w, dim, (double) w / dim});
-
+      if (progressListener != null) {
+        long now = System.nanoTime();
+        if (now - nextProgress >= 0) {
+          progressListener.accept(new HungarianProgress(dim, matched, phases, labelUpdates,
+                                                        now - start, false));
+          nextProgress = now + progressIntervalNanos;
+        }
+      }
+    }
+    if (progressListener != null) {
+      progressListener.accept(new HungarianProgress(dim, matched, phases, labelUpdates,
+                                                    System.nanoTime() - start, true));
     }
     int[] result = Arrays.copyOf(matchJobByWorker, rows);
     for (w = 0; w < result.length; w++) {
@@ -175,17 +360,9 @@ class HungarianAlgorithm {
    */
   protected void executePhase() {
     while (true) {
-      int minSlackWorker = -1, minSlackJob = -1;
-      double minSlackValue = Double.POSITIVE_INFINITY;
-      for (int j = 0; j < dim; j++) {
-        if (parentWorkerByCommittedJob[j] == -1) {
-          if (minSlackValueByJob[j] < minSlackValue) {
-            minSlackValue = minSlackValueByJob[j];
-            minSlackWorker = minSlackWorkerByJob[j];
-            minSlackJob = j;
-          }
-        }
-      }
+      int minSlackJob = findMinSlackJob();
+      int minSlackWorker = minSlackWorkerByJob[minSlackJob];
+      double minSlackValue = minSlackValueByJob[minSlackJob];
       if (minSlackValue > 0) {
         updateLabeling(minSlackValue);
       }
@@ -212,14 +389,62 @@ class HungarianAlgorithm {
          */
         int worker = matchWorkerByJob[minSlackJob];
         committedWorkers[worker] = true;
-        for (int j = 0; j < dim; j++) {
-          if (parentWorkerByCommittedJob[j] == -1) {
-            double slack = costMatrix[worker][j] - labelByWorker[worker] - labelByJob[j];
-            if (minSlackValueByJob[j] > slack) {
-              minSlackValueByJob[j] = slack;
-              minSlackWorkerByJob[j] = worker;
-            }
-          }
+        forEachChunk(c -> updateSlack(worker, chunkStart(c), chunkEnd(c)));
+      }
+    }
+  }
+
+  /**
+   * @return the non-committed job with the minimum slack, the lowest such job if there are ties
+   */
+  private int findMinSlackJob() {
+    if (chunks == 1) {
+      return findMinSlackJob(0, dim);
+    }
+    // the minimum of each chunk, combined in chunk order so that ties go to the lowest job
+    int[] chunkMinimums = IntStream.range(0, chunks).parallel()
+                                   .map(c -> findMinSlackJob(chunkStart(c), chunkEnd(c)))
+                                   .toArray();
+    int minSlackJob = -1;
+    for (int j : chunkMinimums) {
+      if (j != -1
+          && (minSlackJob == -1 || minSlackValueByJob[j] < minSlackValueByJob[minSlackJob])) {
+        minSlackJob = j;
+      }
+    }
+    return minSlackJob;
+  }
+
+  /**
+   * @return the non-committed job in [start, end) with the minimum slack, or -1 if there is none
+   */
+  private int findMinSlackJob(int start, int end) {
+    int minSlackJob = -1;
+    double minSlackValue = Double.POSITIVE_INFINITY;
+    for (int j = start; j < end; j++) {
+      if (parentWorkerByCommittedJob[j] == -1) {
+        if (minSlackValueByJob[j] < minSlackValue) {
+          minSlackValue = minSlackValueByJob[j];
+          minSlackJob = j;
+        }
+      }
+    }
+    return minSlackJob;
+  }
+
+  /**
+   * Update the slack values of the non-committed jobs in [start, end), since worker has been
+   * committed
+   */
+  private void updateSlack(int worker, int start, int end) {
+    double[] row = costMatrix[worker];
+    double label = labelByWorker[worker];
+    for (int j = start; j < end; j++) {
+      if (parentWorkerByCommittedJob[j] == -1) {
+        double slack = row[j] - label - labelByJob[j];
+        if (minSlackValueByJob[j] > slack) {
+          minSlackValueByJob[j] = slack;
+          minSlackWorkerByJob[j] = worker;
         }
       }
     }
@@ -242,16 +467,21 @@ class HungarianAlgorithm {
   /**
    * Find a valid matching by greedily selecting among zero-cost matchings. This is a heuristic to
    * jump-start the augmentation algorithm.
+   * 
+   * @return the number of workers matched
    */
-  protected void greedyMatch() {
+  protected int greedyMatch() {
+    int matched = 0;
     for (int w = 0; w < dim; w++) {
       for (int j = 0; j < dim; j++) {
         if (matchJobByWorker[w] == -1 && matchWorkerByJob[j] == -1
             && costMatrix[w][j] - labelByWorker[w] - labelByJob[j] == 0) {
           match(w, j);
+          matched++;
         }
       }
     }
+    return matched;
   }
 
   /**
@@ -264,10 +494,12 @@ class HungarianAlgorithm {
     Arrays.fill(committedWorkers, false);
     Arrays.fill(parentWorkerByCommittedJob, -1);
     committedWorkers[w] = true;
-    for (int j = 0; j < dim; j++) {
-      minSlackValueByJob[j] = costMatrix[w][j] - labelByWorker[w] - labelByJob[j];
-      minSlackWorkerByJob[j] = w;
-    }
+    forEachChunk(c -> {
+      for (int j = chunkStart(c); j < chunkEnd(c); j++) {
+        minSlackValueByJob[j] = costMatrix[w][j] - labelByWorker[w] - labelByJob[j];
+        minSlackWorkerByJob[j] = w;
+      }
+    });
   }
 
   /**
@@ -279,38 +511,113 @@ class HungarianAlgorithm {
   }
 
   /**
-   * Reduce the cost matrix by subtracting the smallest element of each row from all elements of the
-   * row as well as the smallest element of each column from all elements of the column. Note that
-   * an optimal assignment for a reduced cost matrix is optimal for the original cost matrix.
+   * Initialize the labels and matching from the seed. Workers without a label take the largest
+   * label that is feasible against the known job labels, and job labels are then lowered until
+   * every edge is feasible. Seeded pairs are kept if they are tight, or can be made tight by raising the
+   * job label without making another edge infeasible.
+   * 
+   * @return the number of workers matched, or -1 if the seed could not be repaired (in which case
+   *         nothing is matched, and the algorithm should start from scratch)
    */
-  protected void reduce() {
-    for (int w = 0; w < dim; w++) {
-      double min = Double.POSITIVE_INFINITY;
-      for (int j = 0; j < dim; j++) {
-        if (costMatrix[w][j] < min) {
-          min = costMatrix[w][j];
+  protected int warmStart() {
+    forEachChunk(c -> {
+      for (int w = chunkStart(c); w < chunkEnd(c); w++) {
+        if (isKnownLabel(seedWorkerLabels[w])) {
+          labelByWorker[w] = seedWorkerLabels[w];
+        } else {
+          double min = Double.POSITIVE_INFINITY;
+          for (int j = 0; j < dim; j++) {
+            if (isKnownLabel(seedJobLabels[j])) {
+              min = Math.min(min, costMatrix[w][j] - seedJobLabels[j]);
+            }
+          }
+          labelByWorker[w] = isKnownLabel(min) ? min : 0;
         }
       }
-      for (int j = 0; j < dim; j++) {
-        costMatrix[w][j] -= min;
+    });
+    forEachChunk(c -> {
+      int start = chunkStart(c);
+      int end = chunkEnd(c);
+      for (int j = start; j < end; j++) {
+        labelByJob[j] = isKnownLabel(seedJobLabels[j]) ? seedJobLabels[j]
+                                                       : Double.POSITIVE_INFINITY;
       }
-    }
-    double[] min = new double[dim];
+      for (int w = 0; w < dim; w++) {
+        double[] row = costMatrix[w];
+        double label = labelByWorker[w];
+        for (int j = start; j < end; j++) {
+          if (row[j] - label < labelByJob[j]) {
+            labelByJob[j] = row[j] - label;
+          }
+        }
+      }
+    });
     for (int j = 0; j < dim; j++) {
-      min[j] = Double.POSITIVE_INFINITY;
+      if (!isKnownLabel(labelByJob[j])) {
+        return -1;
+      }
     }
+    int matched = 0;
     for (int w = 0; w < dim; w++) {
-      for (int j = 0; j < dim; j++) {
-        if (costMatrix[w][j] < min[j]) {
-          min[j] = costMatrix[w][j];
+      int j = seedJobByWorker[w];
+      if (j < 0 || j >= dim || matchWorkerByJob[j] != -1) {
+        continue;
+      }
+      double slack = costMatrix[w][j] - labelByWorker[w] - labelByJob[j];
+      if (slack > 0) {
+        // raising the job label by the slack must leave every other edge of the job feasible
+        boolean feasible = true;
+        for (int other = 0; other < dim && feasible; other++) {
+          feasible = other == w
+                     || costMatrix[other][j] - labelByWorker[other] - labelByJob[j] >= slack;
+        }
+        if (!feasible) {
+          continue;
         }
+        labelByJob[j] += slack;
       }
+      match(w, j);
+      matched++;
     }
-    for (int w = 0; w < dim; w++) {
-      for (int j = 0; j < dim; j++) {
-        costMatrix[w][j] -= min[j];
+    return matched;
+  }
+
+  private static boolean isKnownLabel(double label) {
+    return Math.abs(label) < MAX_SEED_LABEL;
+  }
+
+  /**
+   * Reduce the cost matrix by subtracting the smallest element of each row from all elements of the
+   * row as well as the smallest element of each column from all elements of the column. Note that
+   * an optimal assignment for a reduced cost matrix is optimal for the original cost matrix.
+   */
+  protected void reduce() {
+    // chunks of rows
+    forEachChunk(c -> {
+      for (int w = chunkStart(c); w < chunkEnd(c); w++) {
+        double[] row = costMatrix[w];
+        double min = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < dim; j++) {
+          if (row[j] < min) {
+            min = row[j];
+          }
+        }
+        for (int j = 0; j < dim; j++) {
+          row[j] -= min;
+        }
+        rowOffsets[w] = min;
       }
-    }
+    });
+    double[] min = columnOffsets;
+    columnMinimums(min);
+    forEachChunk(c -> {
+      for (int w = chunkStart(c); w < chunkEnd(c); w++) {
+        double[] row = costMatrix[w];
+        for (int j = 0; j < dim; j++) {
+          row[j] -= min[j];
+        }
+      }
+    });
   }
 
   /**
@@ -319,17 +626,18 @@ class HungarianAlgorithm {
    * appropriately.
    */
   protected void updateLabeling(double slack) {
-    for (int w = 0; w < dim; w++) {
-      if (committedWorkers[w]) {
-        labelByWorker[w] += slack;
-      }
-    }
-    for (int j = 0; j < dim; j++) {
-      if (parentWorkerByCommittedJob[j] != -1) {
-        labelByJob[j] -= slack;
-      } else {
-        minSlackValueByJob[j] -= slack;
+    labelUpdates++;
+    forEachChunk(c -> {
+      for (int i = chunkStart(c); i < chunkEnd(c); i++) {
+        if (committedWorkers[i]) {
+          labelByWorker[i] += slack;
+        }
+        if (parentWorkerByCommittedJob[i] != -1) {
+          labelByJob[i] -= slack;
+        } else {
+          minSlackValueByJob[i] -= slack;
+        }
       }
-    }
+    });
   }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package org.pankratzlab.kdmatch;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of the progress of a {@link HungarianAlgorithm} run, as passed to its progress
+ * listener
+ */
+class HungarianProgress {
+  private final int dim;
+  private final int matched;
+  private final long phases;
+  private final long labelUpdates;
+  private final long elapsedNanos;
+  private final boolean done;
+
+  HungarianProgress(int dim, int matched, long phases, long labelUpdates, long elapsedNanos,
+                    boolean done) {
+    super();
+    this.dim = dim;
+    this.matched = matched;
+    this.phases = phases;
+    this.labelUpdates = labelUpdates;
+    this.elapsedNanos = elapsedNanos;
+    this.done = done;
+  }
+
+  /**
+   * @return dimension of the (padded, square) cost matrix, i.e. the number of workers to match
+   */
+  int getDim() {
+    return dim;
+  }
+
+  /**
+   * @return number of workers matched so far
+   */
+  int getMatched() {
+    return matched;
+  }
+
+  /**
+   * @return number of phases (augmenting path searches) completed
+   */
+  long getPhases() {
+    return phases;
+  }
+
+  /**
+   * @return number of times the labels were updated to create new zero-slack edges
+   */
+  long getLabelUpdates() {
+    return labelUpdates;
+  }
+
+  Duration getElapsed() {
+    return Duration.ofNanos(elapsedNanos);
+  }
+
+  /**
+   * @return true if this is the final snapshot of a completed run
+   */
+  boolean isDone() {
+    return done;
+  }
+
+  @Override
+  public String toString() {
+    return "matched " + matched + " of " + dim + " after " + phases + " phases and " + labelUpdates
+           + " label updates in " + getElapsed() + (done ? " (done)" : "");
+  }
+}
@@ -0,0 +1,241 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Adds a batch of new cases to the optimized selections of a previous run, without re-optimizing
+ * the cases that were already matched.
+ * <p>
+ * Neighbors are only queried for the new cases. Previously matched cases holding one of the new
+ * cases' candidates are re-queried and optimized together with the new cases (their previous
+ * selections are always among their candidates, so they can keep them). Every other previous
+ * selection is kept as it was, and the controls it holds are removed from the candidates of the
+ * cases being optimized. The work done therefore depends on the size of the new batch and the
+ * cases it competes with, rather than on the number of cases matched before.
+ */
+class IncrementalMatching {
+  private final KDTree<Sample> tree;
+  private final SampleStore controls;
+  private final Logger log;
+  private List<Match> newCandidates;
+
+  /**
+   * @param tree tree of the controls
+   * @param controls store the controls in the tree are interned in
+   * @param log
+   */
+  IncrementalMatching(KDTree<Sample> tree, SampleStore controls, Logger log) {
+    super();
+    this.tree = tree;
+    this.controls = controls;
+    this.log = log;
+  }
+
+  /**
+   * Check that previous selections can be loaded from the file, which must be the tab delimited
+   * output: a {@link BinaryMatchFile} does not hold the data columns of the cases, which are needed
+   * to query the neighbors of the cases that are optimized again
+   */
+  static void checkReadable(Path previousMatches) throws IOException {
+    if (BinaryMatchFile.isBinary(previousMatches)) {
+      throw new IllegalArgumentException(previousMatches + " is a binary match file, which does "
+                                         + "not hold the data columns of the cases; use the tab "
+                                         + "delimited output of a run with binaryOutput=false as "
+                                         + "previousMatches");
+    }
+  }
+
+  /**
+   * Load the selections written to an optimized output file by a previous run
+   *
+   * @param previousMatches the optimized output file, plain text or gzip compressed
+   * @param numDims number of data columns of the samples
+   * @param controls store of the controls the previous run was matched against
+   * @return the selections, in the order of the file
+   */
+  static List<Match> loadMatches(Path previousMatches, int numDims,
+                                 SampleStore controls) throws IOException {
+    checkReadable(previousMatches);
+    Map<String, Integer> controlIndices = new HashMap<>();
+    for (int i = 0; i < controls.size(); i++) {
+      controlIndices.put(controls.get(i).getID(), i);
+    }
+    // id, distance, data columns and group of each control
+    int controlColumns = numDims + 3;
+    List<Match> matches = new ArrayList<>();
+    InputStream in = BackgroundGzipInputStream.open(previousMatches);
+    InputStreamReader decoded = new InputStreamReader(in, StandardCharsets.UTF_8);
+    try (BufferedReader reader = new BufferedReader(decoded)) {
+      // skip the header
+      String line = reader.readLine();
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        double[] dims = new double[numDims];
+        for (int d = 0; d < numDims; d++) {
+          dims[d] = Double.parseDouble(fields[1 + d]);
+        }
+        Sample sample = new Sample(fields[0], dims);
+        if (!fields[1 + numDims].equals("no_group")) {
+          sample.group = fields[1 + numDims];
+        }
+        Match match = new Match(sample, controls, new int[0], new double[0]);
+        // the last two columns are the hungarian and optimal flags
+        for (int pos = numDims + 2; pos + controlColumns <= fields.length - 2;
+             pos += controlColumns) {
+          if (fields[pos].equals("no-match")) {
+            continue;
+          }
+          Integer index = controlIndices.get(fields[pos]);
+          if (index == null) {
+            throw new IllegalArgumentException("Control " + fields[pos] + " matched to "
+                                               + fields[0] + " in " + previousMatches
+                                               + " is not one of the controls");
+          }
+          match.addMatch(index, Double.parseDouble(fields[pos + 1]));
+        }
+        match.setHungarian(Boolean.parseBoolean(fields[fields.length - 2]));
+        match.setOptimal(Boolean.parseBoolean(fields[fields.length - 1]));
+        matches.add(match);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * @param previous selections of the previously matched cases
+   * @param newCases the cases to add
+   * @param numNeighbors number of nearest neighbors to query for each case
+   * @param numSelect number of controls to select for each case
+   * @param options
+   * @return the previous selections (some of which may have changed to make room for the new cases)
+   *         followed by the selections for the new cases
+   */
+  List<Match> addCases(List<Match> previous, List<Sample> newCases, int numNeighbors,
+                       int numSelect, OptimizerOptions options) throws InterruptedException,
+                                                                ExecutionException {
+    newCandidates = KDTree.getNearestNeighborsForSamples(tree, controls, newCases.stream(),
+                                                         numNeighbors)
+                          .collect(Collectors.toList());
+
+    // the previous case holding each control, or -1
+    int[] owner = new int[controls.size()];
+    Arrays.fill(owner, -1);
+    for (int i = 0; i < previous.size(); i++) {
+      Match selection = previous.get(i);
+      for (int j = 0; j < selection.size(); j++) {
+        owner[selection.getMatchIndex(j)] = i;
+      }
+    }
+    // previous cases holding a control that a new case could select
+    boolean[] contested = new boolean[previous.size()];
+    for (Match candidates : newCandidates) {
+      for (int j = 0; j < candidates.size(); j++) {
+        int holder = owner[candidates.getMatchIndex(j)];
+        if (holder != -1) {
+          contested[holder] = true;
+        }
+      }
+    }
+    List<Integer> reopened = new ArrayList<>();
+    for (int i = 0; i < previous.size(); i++) {
+      if (contested[i]) {
+        reopened.add(i);
+      }
+    }
+    log.log(Level.INFO,
+            "{0} new cases compete for controls held by {1} of {2} previously matched cases, "
+                        + "which will be optimized with them",
+            new Object[] {newCases.size(), reopened.size(), previous.size()});
+
+    List<Match> toOptimize = new ArrayList<>(newCandidates.size() + reopened.size());
+    for (Match candidates : newCandidates) {
+      toOptimize.add(getAvailableCandidates(candidates, null, owner, contested));
+    }
+    List<Sample> reopenedCases = reopened.stream().map(i -> previous.get(i).sample)
+                                         .collect(Collectors.toList());
+    List<Match> reopenedCandidates = KDTree.getNearestNeighborsForSamples(tree, controls,
+                                                                          reopenedCases.stream(),
+                                                                          numNeighbors)
+                                           .collect(Collectors.toList());
+    for (int r = 0; r < reopened.size(); r++) {
+      toOptimize.add(getAvailableCandidates(reopenedCandidates.get(r),
+                                            previous.get(reopened.get(r)), owner, contested));
+    }
+
+    Map<Sample, Match> optimized = new IdentityHashMap<>();
+    SelectOptimizedNeighbors.optimizeDuplicates(toOptimize, numSelect, options, log)
+                            .forEach(m -> optimized.put(m.sample, m));
+
+    List<Match> combined = new ArrayList<>(previous.size() + newCases.size());
+    for (int i = 0; i < previous.size(); i++) {
+      combined.add(contested[i] ? optimized.get(previous.get(i).sample) : previous.get(i));
+    }
+    for (Match candidates : newCandidates) {
+      combined.add(optimized.get(candidates.sample));
+    }
+    return combined;
+  }
+
+  /**
+   * @return the neighbors queried for each new case, in the same order as the new cases
+   */
+  List<Match> getNewCandidates() {
+    return newCandidates;
+  }
+
+  /**
+   * @param candidates neighbors of a case
+   * @param previousSelection the controls previously selected for the case, or null for a new case
+   * @param owner the previous case holding each control, or -1
+   * @param contested previous cases that are being optimized again
+   * @return the candidates (and previous selections) that are not held by a previous case that is
+   *         kept as it was, ordered by distance
+   */
+  private static Match getAvailableCandidates(Match candidates, Match previousSelection,
+                                              int[] owner, boolean[] contested) {
+    List<Integer> indices = new ArrayList<>();
+    List<Double> distances = new ArrayList<>();
+    for (int j = 0; j < candidates.size(); j++) {
+      int holder = owner[candidates.getMatchIndex(j)];
+      if (holder == -1 || contested[holder]) {
+        indices.add(candidates.getMatchIndex(j));
+        distances.add(candidates.getDistance(j));
+      }
+    }
+    if (previousSelection != null) {
+      for (int j = 0; j < previousSelection.size(); j++) {
+        if (!candidates.hasMatch(previousSelection.getMatchIndex(j))) {
+          indices.add(previousSelection.getMatchIndex(j));
+          distances.add(previousSelection.getDistance(j));
+        }
+      }
+    }
+    // stable, so ties keep the neighbor order
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < indices.size(); i++) {
+      order.add(i);
+    }
+    order.sort(Comparator.comparing(distances::get));
+    Match available = candidates.emptyCopy();
+    for (int i : order) {
+      available.addMatch(indices.get(i), distances.get(i));
+    }
+    return available;
+  }
+}
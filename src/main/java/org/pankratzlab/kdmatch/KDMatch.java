@@ -1,17 +1,20 @@
 package org.pankratzlab.kdmatch;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringJoiner;
 import java.util.concurrent.ExecutionException;
@@ -21,6 +24,8 @@ import java.util.stream.Stream;
 
 public class KDMatch {
   public final static String STATUS_FILE_HEADER = "id\tstatus\tmatched_case_id";
+  // buffer between formatting and compression of the match output
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
 
   // prototype for matching using KD trees(https://en.wikipedia.org/wiki/K-d_tree), with the
   // resolution of duplicate
@@ -36,10 +41,56 @@ public class KDMatch {
   // communities of matches that are connected by at least one control)
 
   private static void run(Path inputFileAnchor, Path inputFileBarns, Path outputDir,
-                          int initialNumSelect, int finalNumSelect, int threads,
+                          int initialNumSelect, int finalNumSelect, OptimizerOptions options,
                           Logger log) throws IOException, InterruptedException, ExecutionException {
-    String[] headerA = Files.lines(inputFileAnchor).findFirst().get().toString().trim().split("\t");
-    String[] headerB = Files.lines(inputFileBarns).findFirst().get().toString().trim().split("\t");
+    if (options.getPreviousMatches() != null) {
+      // before reading the inputs, which can take a while
+      IncrementalMatching.checkReadable(options.getPreviousMatches());
+    }
+    String[] headerA;
+    String[] headerB;
+    Stream<Sample> anchorSamples;
+    Stream<Sample> barnSamples;
+    if (options.getStatusColumn() != null) {
+      if (!inputFileBarns.equals(inputFileAnchor) && !inputFileBarns.toString().equals("-")) {
+        throw new IllegalArgumentException("With a status column, the cases and controls are both "
+                                           + "read from " + inputFileAnchor
+                                           + ", so the control file should be - or the same file");
+      }
+      SampleFile cohort = SampleFile.load(inputFileAnchor, options.getStatusColumn(),
+                                          options.getGroupColumn(), options.getThreads());
+      log.info("read " + cohort.getCases().size() + " cases and " + cohort.getControls().size()
+               + " controls from " + inputFileAnchor.toString() + ", skipping "
+               + cohort.getSkipped() + " samples with another status");
+      headerA = cohort.getHeader();
+      headerB = cohort.getHeader();
+      anchorSamples = cohort.getCases().stream();
+      barnSamples = cohort.getControls().stream();
+      inputFileBarns = inputFileAnchor;
+    } else {
+      // the samples are read block by block as they are consumed (i.e. added to the tree, or
+      // queried), rather than reading both files up front
+      SampleFile.Reader anchorFile = SampleFile.Reader.open(inputFileAnchor, null,
+                                                            options.getGroupColumn(),
+                                                            options.getThreads());
+      SampleFile.Reader barnFile;
+      try {
+        barnFile = SampleFile.Reader.open(inputFileBarns, null, options.getGroupColumn(),
+                                          options.getThreads());
+      } catch (IOException | RuntimeException e) {
+        anchorFile.close();
+        throw e;
+      }
+      headerA = anchorFile.getHeader();
+      headerB = barnFile.getHeader();
+      anchorSamples = anchorFile.samples();
+      barnSamples = barnFile.samples();
+      if (!Arrays.equals(headerA, headerB)) {
+        // nothing is matched (see below), so nothing is read
+        anchorFile.close();
+        barnFile.close();
+      }
+    }
     new File(outputDir.toString()).mkdirs();
 
     if (Arrays.equals(headerA, headerB)) {
@@ -49,63 +100,228 @@ public class KDMatch {
 
       log.info("building tree from " + inputFileBarns.toString());
 
-      KDTree.addSamplesToTree(kdTree, getSampleStreamFromFile(inputFileBarns));
-
-      log.info("selecting initial " + initialNumSelect + " nearest neighbors for "
-               + inputFileAnchor.toString());
-
-      // The initial selection seems to be quick and scales well (seconds on most data).
-      List<Match> naiveMatches = KDTree.getNearestNeighborsForSamples(kdTree,
-                                                                      getSampleStreamFromFile(inputFileAnchor),
-                                                                      initialNumSelect)
-                                       .collect(Collectors.toList());
-      String outputBase = outputDir + File.separator + "test.match.AllowDups.txt.gz";
-
-      log.info("reporting full baseline selection of " + initialNumSelect + " nearest neighbors to "
-               + outputBase);
-      writeToFile(naiveMatches.stream(), outputBase, headerA, headerB, initialNumSelect);
+      SampleStore controls = new SampleStore();
+      KDTree.addSamplesToTree(kdTree, controls, barnSamples);
 
+      SampleStore cases = new SampleStore();
+      Stream<Sample> anchors = anchorSamples.map(cases::add);
+      // binary match output replaces the tab delimited one
+      String matchExtension = options.isBinaryOutput() ? ".bin" : ".txt.gz";
+      String outputBase = outputDir + File.separator + "test.match.AllowDups" + matchExtension;
       String statusBase = outputDir + File.separator + "test.status.AllowDups.txt";
-      writeSampleStatusFile(naiveMatches.stream(), statusBase, initialNumSelect);
+      String outputOpt = outputDir + File.separator + "test.match.optimized" + matchExtension;
+      String statusOptimized = outputDir + File.separator + "test.status.optimized.txt";
+      Checkpoint checkpoint = null;
+      if (options.getCheckpoint() != null) {
+        if (options.getPreviousMatches() != null || options.isAdaptive()) {
+          throw new IllegalArgumentException("checkpoint can not be combined with previousMatches "
+                                             + "or adaptive");
+        }
+        checkpoint = new Checkpoint(options.getCheckpoint(), log);
+        // a restarted run writes the outputs again rather than adding to them
+        if (!checkpoint.hasCandidates()) {
+          deleteOutputs(outputBase, statusBase);
+        }
+        deleteOutputs(outputOpt, statusOptimized);
+      }
+      List<Match> naiveMatches;
+      Stream<Match> optimizedMatches;
+      // number of neighbors reported in the baseline output
+      int baselineNumSelect;
+      // true if the baseline output has already been written
+      boolean baselineWritten = false;
+      if (options.getPreviousMatches() != null) {
+        log.info("adding " + inputFileAnchor.toString() + " to the previous selections in "
+                 + options.getPreviousMatches());
+        IncrementalMatching incremental = new IncrementalMatching(kdTree, controls, log);
+        List<Match> previous = IncrementalMatching.loadMatches(options.getPreviousMatches(),
+                                                               headerA.length - 1, controls);
+        optimizedMatches = incremental.addCases(previous, anchors.collect(Collectors.toList()),
+                                                initialNumSelect, finalNumSelect, options)
+                                      .stream();
+        // the baseline output only holds the new cases
+        naiveMatches = incremental.getNewCandidates();
+        baselineNumSelect = initialNumSelect;
+      } else if (options.isAdaptive()) {
+        log.info("adaptively selecting up to " + initialNumSelect + " nearest neighbors for "
+                 + inputFileAnchor.toString());
+        AdaptiveNeighborSelection adaptive = new AdaptiveNeighborSelection(kdTree, controls, log);
+        optimizedMatches = adaptive.select(anchors.collect(Collectors.toList()), finalNumSelect,
+                                           initialNumSelect, options)
+                                   .stream();
+        naiveMatches = adaptive.getCandidates();
+        // the number of neighbors varies by case, so report the nearest finalNumSelect
+        baselineNumSelect = finalNumSelect;
+      } else if (checkpoint != null && checkpoint.hasCandidates()) {
+        log.info("resuming from the nearest neighbors of " + inputFileAnchor.toString()
+                 + " saved in " + options.getCheckpoint() + ", already reported to "
+                 + outputBase);
+        naiveMatches = checkpoint.loadCandidates(anchors.collect(Collectors.toList()), controls,
+                                                 initialNumSelect);
+        baselineNumSelect = initialNumSelect;
+        baselineWritten = true;
+        optimizedMatches = null;
+      } else if (options.isStreaming()) {
+        log.info("selecting initial " + initialNumSelect + " nearest neighbors for "
+                 + inputFileAnchor.toString() + " in chunks of " + StreamingPipeline.CHUNK_SIZE
+                 + " cases, reporting them to " + outputBase + " as they are selected");
+        naiveMatches = StreamingPipeline.queryAndWrite(kdTree, controls, anchors,
+                                                       initialNumSelect, outputBase, statusBase,
+                                                       headerA, headerB, options, log);
+        baselineNumSelect = initialNumSelect;
+        baselineWritten = true;
+        optimizedMatches = null;
+      } else {
+        log.info("selecting initial " + initialNumSelect + " nearest neighbors for "
+                 + inputFileAnchor.toString());
 
-      String outputOpt = outputDir + File.separator + "test.match.optimized.txt.gz";
+        // The initial selection seems to be quick and scales well (seconds on most data).
+        naiveMatches = KDTree.getNearestNeighborsForSamples(kdTree, controls, anchors,
+                                                            initialNumSelect)
+                             .collect(Collectors.toList());
+        baselineNumSelect = initialNumSelect;
+        optimizedMatches = null;
+      }
+      if (!baselineWritten) {
+        log.info("reporting full baseline selection of " + baselineNumSelect
+                 + " nearest neighbors to " + outputBase);
+        writeOutputs(naiveMatches.stream(), outputBase, statusBase, headerA, headerB,
+                     baselineNumSelect, options);
+      }
+      if (checkpoint != null && !checkpoint.hasCandidates()) {
+        checkpoint.saveCandidates(naiveMatches, initialNumSelect);
+      }
 
-      log.info("selecting  " + naiveMatches + " optimized nearest neighbors");
+      if (optimizedMatches == null) {
+        log.info("selecting " + finalNumSelect + " optimized nearest neighbors");
 
-      Stream<Match> optimizedMatches = SelectOptimizedNeighbors.optimizeDuplicates(naiveMatches,
-                                                                                   finalNumSelect,
-                                                                                   threads, log);
+        // communities optimized before a restart are not optimized again
+        CommunityJournal journal = checkpoint == null ? null
+                                                      : checkpoint.openJournal(finalNumSelect,
+                                                                               initialNumSelect,
+                                                                               options);
+        try {
+          optimizedMatches = SelectOptimizedNeighbors.optimizeDuplicates(naiveMatches,
+                                                                         finalNumSelect, options,
+                                                                         null, journal, log);
+        } finally {
+          if (journal != null) {
+            journal.close();
+          }
+        }
+      }
       log.info("reporting optimized selection of " + finalNumSelect + " nearest neighbors to "
                + outputOpt);
 
-      writeToFile(optimizedMatches, outputOpt, headerA, headerB, finalNumSelect);
-
-      String statusOptimized = outputDir + File.separator + "test.status.optimized.txt";
-      writeSampleStatusFile(optimizedMatches, statusOptimized, finalNumSelect);
+      writeOutputs(optimizedMatches, outputOpt, statusOptimized, headerA, headerB,
+                   finalNumSelect, options);
     }
 
   }
 
+  private static void deleteOutputs(String... outputs) throws IOException {
+    for (String output : outputs) {
+      Files.deleteIfExists(Paths.get(output));
+    }
+  }
+
   public static Stream<Sample> getSampleStreamFromFile(Path inputFileBarns) throws IOException {
-    return Files.lines(inputFileBarns).map(l -> l.split("\t")).skip(1)
-                .map(s -> new Sample(s[0], Arrays.stream(s).skip(1).mapToDouble(Double::parseDouble)
-                                                 .toArray()));
+    return SampleFile.load(inputFileBarns).getSamples().stream();
   }
 
+  /**
+   * Write the matches gzip compressed, adding to the end of the output if it already exists (the
+   * header is only written to a new or empty file)
+   */
   public static void writeToFile(Stream<Match> matches, String output, String[] headerA,
-                                  String[] headerB, int numToSelect) throws IOException {
-    PrintWriter writer = new PrintWriter(new FileOutputStream(output, true));
-    BufferedReader br = new BufferedReader(new FileReader(output));     
-    if (br.readLine() == null) {
-    	addHeader(numToSelect, headerA, headerB, writer);
+                                 String[] headerB, int numToSelect) throws IOException {
+    write(matches, MatchSink.matchFile(output, headerA, headerB, numToSelect, -1));
+  }
+
+  /**
+   * Write the matches and their status in one pass, see {@link MatchFanOut}
+   */
+  private static void writeOutputs(Stream<Match> matches, String matchOutput, String statusOutput,
+                                   String[] headerA, String[] headerB, int numToSelect,
+                                   OptimizerOptions options) throws IOException,
+                                                             InterruptedException {
+    MatchFanOut.writeAll(matches, openOutputs(matchOutput, statusOutput, headerA, headerB,
+                                              numToSelect, options));
+  }
+
+  /**
+   * @param options output settings (binary or tab delimited, and precision of the match output)
+   * @return sinks writing the match and status outputs
+   */
+  static List<MatchSink> openOutputs(String matchOutput, String statusOutput, String[] headerA,
+                                     String[] headerB, int numToSelect,
+                                     OptimizerOptions options) throws IOException {
+    List<MatchSink> sinks = new ArrayList<>();
+    try {
+      if (options.isBinaryOutput()) {
+        sinks.add(BinaryMatchFile.sink(Paths.get(matchOutput), numToSelect));
+      } else {
+        sinks.add(MatchSink.matchFile(matchOutput, headerA, headerB, numToSelect,
+                                      options.getOutputPrecision()));
+      }
+      sinks.add(MatchSink.statusFile(statusOutput, numToSelect));
+    } catch (IOException e) {
+      for (MatchSink sink : sinks) {
+        sink.close();
+      }
+      throw e;
+    }
+    return sinks;
+  }
+
+  private static void write(Stream<Match> matches, MatchSink sink) throws IOException {
+    try {
+      MatchFanOut.writeAll(matches, Collections.singletonList(sink));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing matches");
+    }
+  }
+
+  /**
+   * @return a gzip compressed match output, appending to the output if it already exists and
+   *         writing the header if it does not
+   */
+  static GzipBlockOutputStream openMatchOutput(String output, String[] headerA, String[] headerB,
+                                               int numToSelect) throws IOException {
+    boolean empty = new File(output).length() == 0;
+    GzipBlockOutputStream out = new GzipBlockOutputStream(output, true);
+    if (empty) {
+      String header = getHeader(numToSelect, headerA, headerB) + System.lineSeparator();
+      out.write(header.getBytes(StandardCharsets.UTF_8));
     }
-    
-    matches.map(m -> m.getFormattedResults(numToSelect)).forEach(s -> writer.println(s));
-    writer.close();
+    return out;
   }
 
-  private static void addHeader(int numToSelect, String[] headerA, String[] headerB,
-                                PrintWriter writer) {
+  /**
+   * @return a writer of the status output, appending to the output if it already exists and
+   *         writing the header if it does not
+   */
+  static PrintWriter openStatusWriter(String output) throws IOException {
+    boolean empty = new File(output).length() == 0;
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(output, true),
+                                                            OUTPUT_BUFFER_SIZE));
+    if (empty) {
+      writer.println(STATUS_FILE_HEADER);
+    }
+    return writer;
+  }
+
+  /**
+   * PrintWriters do not throw, so check whether any of the writes failed
+   */
+  static void checkError(PrintWriter writer, String output) throws IOException {
+    if (writer.checkError()) {
+      throw new IOException("Could not write " + output);
+    }
+  }
+
+  private static String getHeader(int numToSelect, String[] headerA, String[] headerB) {
     StringJoiner header = new StringJoiner("\t");
     header.add("id");
     for (String h : headerA) {
@@ -121,18 +337,100 @@ public class KDMatch {
       header.add("control_" + (i + 1) + "_" + "group");
     }
     header.add("hungarian_selection");
-    writer.println(header);
+    header.add("optimal_selection");
+    return header.toString();
   }
 
   public static void writeSampleStatusFile(Stream<Match> matches, String outputFileName,
                                            int numToSelect) throws IOException {
-    try (PrintWriter writer = new PrintWriter(new FileOutputStream(outputFileName, true))) {
-      BufferedReader br = new BufferedReader(new FileReader(outputFileName));
-      if (br.readLine() == null) {
-        writer.println(STATUS_FILE_HEADER);
+    write(matches, MatchSink.statusFile(outputFileName, numToSelect));
+  }
+
+  /**
+   * @param args name=value settings. Durations are in ISO-8601 format (e.g. PT30M), and memory in
+   *          bytes with an optional k, m or g suffix
+   */
+  static OptimizerOptions parseOptions(String[] args) {
+    OptimizerOptions options = new OptimizerOptions().threads(6);
+    for (String arg : args) {
+      String[] nameValue = arg.split("=", 2);
+      if (nameValue.length != 2) {
+        throw new IllegalArgumentException("Expected name=value but got " + arg);
+      }
+      String value = nameValue[1];
+      switch (nameValue[0]) {
+        case "threads":
+          options.threads(Integer.parseInt(value));
+          break;
+        case "communityTimeBudget":
+          options.communityTimeBudget(Duration.parse(value));
+          break;
+        case "totalTimeBudget":
+          options.totalTimeBudget(Duration.parse(value));
+          break;
+        case "adaptive":
+          options.adaptive(Boolean.parseBoolean(value));
+          break;
+        case "mode":
+          options.mode(OptimizerMode.valueOf(value.toUpperCase()));
+          break;
+        case "maxCommunitySize":
+          options.maxCommunitySize(Integer.parseInt(value));
+          break;
+        case "progressInterval":
+          options.progressInterval(Duration.parse(value));
+          break;
+        case "memoryBudget":
+          options.memoryBudget(parseBytes(value));
+          break;
+        case "previousMatches":
+          options.previousMatches(Paths.get(value));
+          break;
+        case "streaming":
+          options.streaming(Boolean.parseBoolean(value));
+          break;
+        case "outputPrecision":
+          options.outputPrecision(Integer.parseInt(value));
+          break;
+        case "binaryOutput":
+          options.binaryOutput(Boolean.parseBoolean(value));
+          break;
+        case "statusColumn":
+          options.statusColumn(value);
+          break;
+        case "groupColumn":
+          options.groupColumn(value);
+          break;
+        case "checkpoint":
+          options.checkpoint(Paths.get(value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + nameValue[0]);
       }
-      matches.flatMap(m -> m.getStatusFileLines(numToSelect)).forEach(writer::println);
     }
+    return options;
+  }
+
+  /**
+   * @param value a number of bytes, optionally followed by k, m or g (e.g. 12g)
+   */
+  private static long parseBytes(String value) {
+    String lower = value.trim().toLowerCase();
+    int shift = 0;
+    switch (lower.charAt(lower.length() - 1)) {
+      case 'k':
+        shift = 10;
+        break;
+      case 'm':
+        shift = 20;
+        break;
+      case 'g':
+        shift = 30;
+        break;
+      default:
+        return Long.parseLong(lower);
+    }
+    return Long.parseLong(lower.substring(0, lower.length() - 1)) << shift;
   }
 
   public static void main(String[] args) {
@@ -152,16 +450,25 @@ public class KDMatch {
     // 1000038 65.4590502813067 -63.8399147505082
     Path ouputDir = Paths.get(args[2]);
     // Number of controls to select initially (maybe 5X the final number needed?). This allows for a
-    // buffer of extra controls that can be used for de-duplicating
+    // buffer of extra controls that can be used for de-duplicating. With adaptive=true, this is
+    // instead the most that will be selected for any one case
     int initialNumSelect = Integer.parseInt(args[3]);
 
     // The actual number of controls that are needed in the end
     int finalNumSelect = Integer.parseInt(args[4]);
 
+    // Optional name=value settings, e.g. threads=6 communityTimeBudget=PT10M totalTimeBudget=PT8H
+    // adaptive=true mode=hungarian/greedy/sequential streaming=true outputPrecision=6
+    // binaryOutput=true statusColumn=STATUS groupColumn=GROUP checkpoint=/scratch/run1
+    // With statusColumn, the first file holds the whole cohort (cases have status 1, controls 0),
+    // and the second file should be - (or the same file)
+    OptimizerOptions options = parseOptions(Arrays.copyOfRange(args, 5, args.length));
+
     try {
       Instant start = Instant.now();
       Logger log = Logger.getAnonymousLogger();
-      run(inputFileAnchor, inputFileBarns, ouputDir, initialNumSelect, finalNumSelect, 6, log);
+      run(inputFileAnchor, inputFileBarns, ouputDir, initialNumSelect, finalNumSelect, options,
+          log);
       log.info(Duration.between(start, Instant.now()).toString());
     } catch (IOException | InterruptedException | ExecutionException e) {
       e.printStackTrace();
@@ -2,8 +2,10 @@ package org.pankratzlab.kdmatch;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
 import java.util.stream.Stream;
 
 // Sourced from https://robowiki.net/wiki/User:Chase-san/Kd-Tree . NB: ZLIB License
@@ -306,26 +308,84 @@ public class KDTree<T> {
 
   }
 
+  /**
+   * Intern each sample in the store and add it to the tree
+   */
+  static void addSamplesToTree(KDTree<Sample> tree, SampleStore store, Stream<Sample> barnacles) {
+    barnacles.forEachOrdered(s -> addToTree(tree, store.add(s)));
+  }
+
+  /**
+   * Add the samples to the tree without interning them, for use with
+   * {@link #getNearestNeighborsForSamples(KDTree, Stream, int)}
+   */
   public static void addSamplesToTree(KDTree<Sample> tree, Stream<Sample> barnacles) {
     barnacles.forEach(s -> addToTree(tree, s));
   }
 
-  private static List<Sample> getMatches(ResultHeap<Sample> matches) {
-    List<Sample> results = new ArrayList<>();
-
-    // retrieve sample, starting from farthest away
-    while (matches.size() > 0) {
-      results.add(matches.removeMax());
+  /**
+   * @param indexOf store index of each sample found
+   */
+  private static Match getMatch(Sample anchor, SampleStore store, ResultHeap<Sample> heap,
+                                ToIntFunction<Sample> indexOf) {
+    int size = heap.size();
+    int[] results = new int[size];
+    double[] distances = new double[size];
+
+    // retrieve sample, starting from farthest away, so first index is the nearest distance match.
+    // Keys are the squared distance
+    for (int i = size - 1; i >= 0; i--) {
+      distances[i] = Math.sqrt(heap.getMaxKey());
+      results[i] = indexOf.applyAsInt(heap.removeMax());
     }
+    return new Match(anchor, store, results, distances);
+  }
 
-    // reverse so first index is the nearest distance match
-    Collections.reverse(results);
-    return results;
+  /**
+   * @param tree tree of samples that have been interned in the store
+   * @param store
+   * @param anchor
+   * @param numToSelect
+   */
+  static Match getNearestNeighborsForSample(KDTree<Sample> tree, SampleStore store, Sample anchor,
+                                            int numToSelect) {
+    return getMatch(anchor, store, tree.getNearestNeighbors(anchor.dim, numToSelect),
+                    s -> s.index);
   }
 
-  public static Stream<Match> getNearestNeighborsForSamples(KDTree<Sample> tree, Stream<Sample> anchors,
-                                                     int numToSelect) {
-    return anchors.map(a -> new Match(a, getMatches(tree.getNearestNeighbors(a.dim, numToSelect))));
+  /**
+   * @param tree tree of samples that have been interned in the store
+   * @param store
+   * @param anchors
+   * @param numToSelect
+   */
+  static Stream<Match> getNearestNeighborsForSamples(KDTree<Sample> tree, SampleStore store,
+                                                     Stream<Sample> anchors, int numToSelect) {
+    return anchors.map(a -> getNearestNeighborsForSample(tree, store, a, numToSelect));
 
   }
+
+  /**
+   * For a tree of samples that have not been interned (see
+   * {@link #addSamplesToTree(KDTree, Stream)}): the neighbors found are interned as copies (leaving
+   * the samples in the tree as they are) in a store shared by the matches of this call, so that the
+   * matches can be optimized together
+   *
+   * @param tree
+   * @param anchors
+   * @param numToSelect
+   */
+  public static Stream<Match> getNearestNeighborsForSamples(KDTree<Sample> tree,
+                                                            Stream<Sample> anchors,
+                                                            int numToSelect) {
+    SampleStore store = new SampleStore();
+    Map<Sample, Sample> interned = new ConcurrentHashMap<>();
+    ToIntFunction<Sample> indexOf = s -> interned.computeIfAbsent(s, n -> {
+      synchronized (store) {
+        return store.add(new Sample(n.ID, n.dim, n.status, n.group));
+      }
+    }).index;
+    return anchors.map(a -> getMatch(a, store, tree.getNearestNeighbors(a.dim, numToSelect),
+                                     indexOf));
+  }
 }
\ No newline at end of file
@@ -1,35 +1,138 @@
 package org.pankratzlab.kdmatch;
 
-import java.util.HashSet;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import java.util.StringJoiner;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * Holds a sample, and the potential matches (i.e nearest neighbors)
+ * Holds a sample, and the potential matches (i.e nearest neighbors). Matches are held as indices
+ * into the {@link SampleStore} of controls.
  */
 public class Match {
   Sample sample;
-  List<Sample> matches;
-  private Set<String> matchIds;
+  private final SampleStore controls;
+  // store index of each match, nearest first
+  private int[] matchIndices;
+  // distance from sample to each of the matches, in the same order
+  private double[] distances;
+  private int size;
+  // sorted copy of the match indices for membership tests, null until needed
+  private int[] sortedMatchIndices;
   private boolean hungarian;
+  private boolean optimal;
 
   /**
    * @param sample
-   * @param matches
+   * @param controls the store the matches are indexed in
+   * @param matchIndices store index of each of the matches
+   * @param distances the (already computed) distance from sample to each of the matches
    */
-  public Match(Sample sample, List<Sample> matches) {
+  Match(Sample sample, SampleStore controls, int[] matchIndices, double[] distances) {
     super();
+    if (matchIndices.length != distances.length) {
+      throw new IllegalArgumentException("Mismatched number of matches and distances");
+    }
     this.sample = sample;
-    this.matches = matches;
-    this.matchIds = new HashSet<>();
+    this.controls = controls;
+    this.matchIndices = matchIndices;
+    this.distances = distances;
+    this.size = matchIndices.length;
     this.hungarian = false;
+    this.optimal = true;
+  }
+
+  /**
+   * For callers that hold the matches as samples rather than store indices. The matches are
+   * interned as copies (leaving the samples as they are) in a store of this match's own. Matches
+   * with different stores are interned again, by control ID, into a shared store when they are
+   * optimized together (see {@link SelectOptimizedNeighbors})
+   *
+   * @param sample
+   * @param matches the matches, nearest first
+   */
+  public Match(Sample sample, List<Sample> matches) {
+    this(sample, new SampleStore(), new int[0], new double[0]);
+    for (Sample match : matches) {
+      Sample copy = controls.add(new Sample(match.ID, match.dim, match.status, match.group));
+      addMatch(copy.index, Utils.getEuclidDistance(sample.dim, match.dim));
+    }
+  }
+
+  /**
+   * @return a new match for the same sample, without any matches
+   */
+  Match emptyCopy() {
+    return new Match(sample, controls, new int[0], new double[0]);
+  }
+
+  /**
+   * @return the number of matches
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the store index of the i'th match
+   */
+  int getMatchIndex(int i) {
+    return matchIndices[i];
   }
 
+  /**
+   * @return the i'th match
+   */
+  Sample getMatch(int i) {
+    return controls.get(matchIndices[i]);
+  }
+
+  /**
+   * @return a view of the matches
+   */
   List<Sample> getMatches() {
-    return matches;
+    return new AbstractList<Sample>() {
+
+      @Override
+      public Sample get(int index) {
+        if (index >= size) {
+          throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return getMatch(index);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  SampleStore getControls() {
+    return controls;
+  }
+
+  /**
+   * @return the distance from the sample to the i'th match
+   */
+  double getDistance(int i) {
+    return distances[i];
+  }
+
+  /**
+   * Append a match, whose distance from the sample has already been computed
+   */
+  void addMatch(int matchIndex, double distance) {
+    if (size == matchIndices.length) {
+      int capacity = Math.max(4, size * 2);
+      matchIndices = Arrays.copyOf(matchIndices, capacity);
+      distances = Arrays.copyOf(distances, capacity);
+    }
+    matchIndices[size] = matchIndex;
+    distances[size] = distance;
+    size++;
+    sortedMatchIndices = null;
   }
 
   /**
@@ -39,30 +142,47 @@ public class Match {
     this.hungarian = hungarian;
   }
 
-  boolean hasMatch(String ID) {
-
-    if (matchIds.size() != matches.size()) {
-      matchIds.addAll(getMatchIDList());
-    }
-    return matchIds.contains(ID);
+  boolean isHungarian() {
+    return hungarian;
   }
 
   /**
-   * @return the matchIds
+   * @param optimal false if the selection for this sample was not solved optimally (e.g. a greedy
+   *          fallback was used because the time budget ran out)
    */
-  Set<String> getMatchIdSet() {
-    if (matchIds.size() != matches.size()) {
-      matchIds.addAll(getMatchIDList());
-    }
-    return matchIds;
+  void setOptimal(boolean optimal) {
+    this.optimal = optimal;
   }
 
-  List<String> getMatchIDList() {
-    return matches.stream().map(s -> s.ID).collect(Collectors.toList());
+  boolean isOptimal() {
+    return optimal;
+  }
+
+  /**
+   * @param matchIndex store index of a control
+   * @return the position of the control among the matches, or -1 if it is not one of them
+   */
+  int indexOf(int matchIndex) {
+    for (int i = 0; i < size; i++) {
+      if (matchIndices[i] == matchIndex) {
+        return i;
+      }
+    }
+    return -1;
   }
 
-  double getDistanceFrom(Sample other) {
-    return Utils.getEuclidDistance(sample.dim, other.dim);
+  /**
+   * @param matchIndex store index of a control
+   * @return true if the control is one of the matches
+   */
+  boolean hasMatch(int matchIndex) {
+    int[] sorted = sortedMatchIndices;
+    if (sorted == null) {
+      sorted = Arrays.copyOf(matchIndices, size);
+      Arrays.sort(sorted);
+      sortedMatchIndices = sorted;
+    }
+    return Arrays.binarySearch(sorted, matchIndex) >= 0;
   }
 
   String getFormattedResults(int numToSelect) {
@@ -72,10 +192,10 @@ public class Match {
 
     for (int i = 0; i < numToSelect; i++) {
       // TODO untested
-      if (matches != null && matches.size() > i) {
-        Sample control = matches.get(i);
+      if (size > i) {
+        Sample control = getMatch(i);
         results.add(control.getID());
-        results.add(Double.toString(getDistanceFrom(control)));
+        results.add(Double.toString(distances[i]));
         for (int j = 0; j < sample.dim.length; j++) {
           results.add(Double.toString(control.dim[j]));
         }
@@ -95,15 +215,16 @@ public class Match {
       }
     }
     results.add(Boolean.toString(hungarian));
+    results.add(Boolean.toString(optimal));
     return results.toString();
   }
 
   Stream<String> getStatusFileLines(int numToSelect) {
-    numToSelect = Math.min(numToSelect, this.matches.size());
+    numToSelect = Math.min(numToSelect, size);
     Stream.Builder<String> streamBuilder = Stream.builder();
     streamBuilder.add(String.join("\t", sample.ID, "1", sample.ID));
-    for (Sample s : this.matches.subList(0, numToSelect)) {
-      streamBuilder.add(String.join("\t", s.ID, "0", sample.ID));
+    for (int i = 0; i < numToSelect; i++) {
+      streamBuilder.add(String.join("\t", getMatch(i).ID, "0", sample.ID));
     }
     return streamBuilder.build();
   }
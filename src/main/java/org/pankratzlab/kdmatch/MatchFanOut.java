@@ -0,0 +1,195 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writes the same matches to several sinks in a single pass. Each sink formats and writes on its
+ * own thread, fed batches of matches through its own bounded queue, so the outputs are written in
+ * parallel and the matches are only traversed once (which also allows a stream of matches, that
+ * can only be traversed once, to be written to every output).
+ * <p>
+ * The sinks are only closed (completing their outputs) once every sink has written every batch;
+ * if any sink fails, the others are aborted instead (see {@link MatchSink#abort()}).
+ */
+class MatchFanOut {
+  // matches handed to the sinks together
+  static final int BATCH_SIZE = 1024;
+  // batches waiting to be written by each sink
+  private static final int QUEUED_BATCHES = 4;
+  // marks the last batch
+  private static final List<Match> END = Collections.emptyList();
+  // tells a sink that has written every batch to close, once every other sink has as well
+  private static final List<Match> CLOSE = Collections.unmodifiableList(new ArrayList<>());
+  // longest wait for the sinks to stop when aborting
+  private static final long ABORT_WAIT_SECONDS = 60;
+
+  private final List<BlockingQueue<List<Match>>> queues = new ArrayList<>();
+  private final List<Future<?>> writers = new ArrayList<>();
+  private final ExecutorService executor;
+  // counted down by each sink once it has written every batch
+  private final CountDownLatch written;
+  private boolean finished = false;
+
+  /**
+   * @param sinks the sinks to write to, closed when writing finishes, or aborted (see
+   *          {@link MatchSink#abort()}) if it fails
+   */
+  MatchFanOut(List<MatchSink> sinks) {
+    super();
+    this.written = new CountDownLatch(sinks.size());
+    this.executor = Executors.newFixedThreadPool(Math.max(1, sinks.size()), r -> {
+      Thread thread = new Thread(r, "match-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (MatchSink sink : sinks) {
+      BlockingQueue<List<Match>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+      queues.add(queue);
+      writers.add(executor.submit(() -> {
+        try {
+          List<Match> batch;
+          while ((batch = queue.take()) != END) {
+            sink.write(batch);
+          }
+          written.countDown();
+          if (queue.take() == CLOSE) {
+            sink.close();
+          }
+        } catch (Exception e) {
+          // failed, or interrupted by abort()
+          try {
+            sink.abort();
+          } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+          }
+          throw e;
+        }
+        return null;
+      }));
+    }
+  }
+
+  /**
+   * Write every match to each of the sinks, and close them
+   */
+  static void writeAll(Stream<Match> matches,
+                       List<MatchSink> sinks) throws IOException, InterruptedException {
+    MatchFanOut fanOut = new MatchFanOut(sinks);
+    try {
+      List<Match> batch = new ArrayList<>(BATCH_SIZE);
+      Iterator<Match> iterator = matches.iterator();
+      while (iterator.hasNext()) {
+        batch.add(iterator.next());
+        if (batch.size() == BATCH_SIZE) {
+          fanOut.write(batch);
+          batch = new ArrayList<>(BATCH_SIZE);
+        }
+      }
+      if (!batch.isEmpty()) {
+        fanOut.write(batch);
+      }
+      fanOut.finish();
+    } finally {
+      fanOut.abort();
+    }
+  }
+
+  /**
+   * Hand the next matches to every sink. The batch is shared by the sinks, so must not be modified
+   * afterwards
+   */
+  void write(List<Match> batch) throws IOException, InterruptedException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    checkFailures();
+    for (int i = 0; i < queues.size(); i++) {
+      put(i, batch);
+    }
+  }
+
+  /**
+   * Queue the batch for a sink, rethrowing the failure of the sink instead if it failed (and so
+   * will not take any more batches)
+   */
+  private void put(int sink, List<Match> batch) throws IOException, InterruptedException {
+    while (!queues.get(sink).offer(batch, 1, TimeUnit.SECONDS)) {
+      if (writers.get(sink).isDone()) {
+        rethrow(writers.get(sink));
+      }
+    }
+  }
+
+  /**
+   * Rethrow the failure of any sink that has already failed (a sink only stops before the last
+   * batch if it failed), so that the other sinks are aborted rather than completed
+   */
+  private void checkFailures() throws IOException, InterruptedException {
+    for (Future<?> writer : writers) {
+      if (writer.isDone()) {
+        rethrow(writer);
+      }
+    }
+  }
+
+  private static void rethrow(Future<?> writer) throws IOException, InterruptedException {
+    try {
+      writer.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not write matches", e.getCause());
+    }
+  }
+
+  /**
+   * Wait for every sink to write the remaining batches, then close them all
+   */
+  void finish() throws IOException, InterruptedException {
+    checkFailures();
+    for (int i = 0; i < queues.size(); i++) {
+      put(i, END);
+    }
+    // a sink that fails never counts down
+    while (!written.await(1, TimeUnit.SECONDS)) {
+      checkFailures();
+    }
+    for (BlockingQueue<List<Match>> queue : queues) {
+      queue.put(CLOSE);
+    }
+    for (Future<?> writer : writers) {
+      rethrow(writer);
+    }
+    finished = true;
+    executor.shutdown();
+  }
+
+  /**
+   * Stop writing if {@link #finish()} did not complete, aborting the sinks that are still writing,
+   * and wait for them to release their outputs
+   */
+  void abort() {
+    if (!finished) {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(ABORT_WAIT_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Formats the rows of the match output (the same rows as {@link Match#getFormattedResults(int)})
+ * straight into bytes, formatting chunks of matches on multiple threads and writing the chunks in
+ * order.
+ * <p>
+ * By default numbers are written as by {@link Double#toString(double)}, so the output is identical
+ * to formatting each row as a String. With a fixed precision, numbers are instead written with that
+ * many decimal places (rounding half up), which is much faster and gives smaller files.
+ */
+class MatchFormatter {
+  // rough size of the rows formatted together by one thread
+  private static final int CHUNK_BYTES = 1 << 20;
+  // rough size of a formatted number or ID
+  private static final int FIELD_BYTES = 20;
+  // largest supported number of decimal places
+  static final int MAX_PRECISION = 17;
+  // scaled values below this are integers plus an exactly representable fraction
+  private static final double MAX_SCALED = 1L << 52;
+  // bound on the relative error of scaling a value by a power of ten (two ulps)
+  private static final double SCALING_ERROR = 0x1p-52;
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+                                                     .getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NO_GROUP = bytes("no_group");
+  private static final byte[] NO_MATCH = bytes("no-match");
+  private static final byte[] NA = bytes("NA");
+  private static final byte[] NAN = bytes("NaN");
+  private static final byte[] INFINITY = bytes("Infinity");
+  private static final byte[] TRUE = bytes(Boolean.toString(true));
+  private static final byte[] FALSE = bytes(Boolean.toString(false));
+  private static final double[] POWERS_OF_TEN = new double[MAX_PRECISION + 1];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+  // reused by each thread for the chunks it formats
+  private static final ThreadLocal<ByteBuilder> BUFFERS = ThreadLocal
+                                                             .withInitial(ByteBuilder::new);
+
+  private final int numToSelect;
+  private final int precision;
+  // matches formatted together by one thread
+  private final int chunkSize;
+
+  /**
+   * @param numToSelect number of selections reported for each case
+   * @param precision number of decimal places written, or -1 to write numbers as by
+   *          {@link Double#toString(double)}
+   * @param numDims number of data columns of the samples
+   */
+  MatchFormatter(int numToSelect, int precision, int numDims) {
+    super();
+    if (precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("Precision can be at most " + MAX_PRECISION);
+    }
+    this.numToSelect = numToSelect;
+    this.precision = precision;
+    // the case and each selection: ID, distance, data columns and group
+    long rowBytes = (numToSelect + 1L) * (numDims + 3) * FIELD_BYTES;
+    this.chunkSize = (int) Math.max(1, CHUNK_BYTES / rowBytes);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Format the matches and write them to the stream, in order
+   */
+  void write(List<Match> matches, OutputStream out) throws IOException {
+    int chunks = (matches.size() + chunkSize - 1) / chunkSize;
+    List<byte[]> formatted = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+      int from = c * chunkSize;
+      return format(matches.subList(from, Math.min(from + chunkSize, matches.size())));
+    }).collect(Collectors.toList());
+    for (byte[] chunk : formatted) {
+      out.write(chunk);
+    }
+  }
+
+  private byte[] format(List<Match> matches) {
+    ByteBuilder row = BUFFERS.get();
+    row.reset();
+    for (Match match : matches) {
+      appendRow(row, match);
+    }
+    return row.toByteArray();
+  }
+
+  private void appendRow(ByteBuilder row, Match match) {
+    Sample sample = match.sample;
+    appendSample(row, sample);
+    for (int i = 0; i < numToSelect; i++) {
+      row.append('\t');
+      if (match.size() > i) {
+        Sample control = match.getMatch(i);
+        row.append(bytes(control.getID()));
+        row.append('\t');
+        appendDouble(row, match.getDistance(i));
+        for (int j = 0; j < sample.dim.length; j++) {
+          row.append('\t');
+          appendDouble(row, control.dim[j]);
+        }
+        row.append('\t');
+        appendGroup(row, control);
+      } else {
+        row.append(NO_MATCH);
+        row.append('\t');
+        row.append(NAN);
+        for (int j = 0; j < sample.dim.length; j++) {
+          row.append('\t');
+          row.append(NAN);
+        }
+        row.append('\t');
+        row.append(NA);
+      }
+    }
+    row.append('\t');
+    row.append(match.isHungarian() ? TRUE : FALSE);
+    row.append('\t');
+    row.append(match.isOptimal() ? TRUE : FALSE);
+    row.append(LINE_SEPARATOR);
+  }
+
+  /**
+   * Same as {@link Sample#getOutput()}
+   */
+  private void appendSample(ByteBuilder row, Sample sample) {
+    row.append(bytes(sample.getID()));
+    for (int i = 0; i < sample.dim.length; i++) {
+      row.append('\t');
+      appendDouble(row, sample.dim[i]);
+    }
+    row.append('\t');
+    appendGroup(row, sample);
+  }
+
+  private static void appendGroup(ByteBuilder row, Sample sample) {
+    if (!sample.getGroup().equals("")) {
+      row.append(bytes(sample.getGroup()));
+    } else {
+      row.append(NO_GROUP);
+    }
+  }
+
+  private void appendDouble(ByteBuilder row, double value) {
+    if (precision < 0) {
+      String s = Double.toString(value);
+      for (int i = 0; i < s.length(); i++) {
+        row.append(s.charAt(i));
+      }
+    } else {
+      appendFixed(row, value, precision);
+    }
+  }
+
+  /**
+   * Append the value with the given number of decimal places, rounding half up (as
+   * {@link BigDecimal#setScale(int, RoundingMode)} would)
+   */
+  private static void appendFixed(ByteBuilder row, double value, int precision) {
+    if (Double.isNaN(value)) {
+      row.append(NAN);
+      return;
+    }
+    if (Double.isInfinite(value)) {
+      if (value < 0) {
+        row.append('-');
+      }
+      row.append(INFINITY);
+      return;
+    }
+    double scaled = Math.abs(value) * POWERS_OF_TEN[precision];
+    // scaling is inexact, so values too large for it (or too close to a half to be sure of the
+    // rounding) are rounded exactly instead
+    if (scaled >= MAX_SCALED
+        || Math.abs(scaled - Math.floor(scaled) - 0.5) <= scaled * SCALING_ERROR) {
+      BigDecimal rounded = new BigDecimal(value).setScale(precision, RoundingMode.HALF_UP);
+      row.append(bytes(rounded.toPlainString()));
+      return;
+    }
+    long digits = Math.round(scaled);
+    if (value < 0 && digits != 0) {
+      row.append('-');
+    }
+    long power = (long) POWERS_OF_TEN[precision];
+    row.appendLong(digits / power);
+    if (precision > 0) {
+      row.append('.');
+      long fraction = digits % power;
+      // leading zeros of the fraction
+      for (long p = power / 10; p > fraction && p > 1; p /= 10) {
+        row.append('0');
+      }
+      row.appendLong(fraction);
+    }
+  }
+
+  /**
+   * A growable byte array, reused between chunks
+   */
+  private static class ByteBuilder {
+    private byte[] bytes = new byte[1 << 16];
+    private int size = 0;
+
+    void reset() {
+      size = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (size + extra > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + extra));
+      }
+    }
+
+    void append(char c) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) c;
+    }
+
+    void append(byte[] b) {
+      ensureCapacity(b.length);
+      System.arraycopy(b, 0, bytes, size, b.length);
+      size += b.length;
+    }
+
+    /**
+     * Append a non-negative number
+     */
+    void appendLong(long value) {
+      ensureCapacity(19);
+      int digits = 1;
+      for (long v = value / 10; v > 0; v /= 10) {
+        digits++;
+      }
+      for (int i = size + digits - 1; i >= size; i--) {
+        bytes[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      size += digits;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A destination for matches, such as one of the output files. Sinks are written to in batches, in
+ * the order of the matches, by {@link MatchFanOut}, which feeds several sinks from one pass over
+ * the matches. A sink is either closed, completing its output, or aborted after a failure.
+ */
+interface MatchSink extends Closeable {
+
+  /**
+   * @param matches the next matches, in order
+   */
+  void write(List<Match> matches) throws IOException;
+
+  /**
+   * Stop writing after a failure (instead of {@link #close()}), leaving the output as it was before
+   * the sink was opened rather than completing it
+   */
+  void abort() throws IOException;
+
+  /**
+   * @param precision number of decimal places, or -1 for full precision (see
+   *          {@link MatchFormatter})
+   * @return a sink writing the gzip compressed match output, see
+   *         {@link KDMatch#openMatchOutput(String, String[], String[], int)}
+   */
+  static MatchSink matchFile(String output, String[] headerA, String[] headerB, int numToSelect,
+                             int precision) throws IOException {
+    MatchFormatter formatter = new MatchFormatter(numToSelect, precision, headerA.length - 1);
+    // the output is appended to, so an aborted sink truncates it back to this length
+    long start = new File(output).length();
+    GzipBlockOutputStream out = KDMatch.openMatchOutput(output, headerA, headerB, numToSelect);
+    return new MatchSink() {
+
+      @Override
+      public void write(List<Match> matches) throws IOException {
+        formatter.write(matches, out);
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+      }
+
+      @Override
+      public void abort() throws IOException {
+        out.abort();
+        truncate(output, start);
+      }
+    };
+  }
+
+  /**
+   * @return a sink writing the status output (a line for each case and each of its selections),
+   *         see {@link KDMatch#openStatusWriter(String)}
+   */
+  static MatchSink statusFile(String output, int numToSelect) throws IOException {
+    long start = new File(output).length();
+    return new LineSink(KDMatch.openStatusWriter(output), output, start,
+                        m -> m.getStatusFileLines(numToSelect));
+  }
+
+  /**
+   * Truncate an output back to the length it had before it was appended to, deleting it if it was
+   * empty
+   */
+  static void truncate(String output, long length) throws IOException {
+    if (length == 0) {
+      Files.deleteIfExists(Paths.get(output));
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(Paths.get(output), StandardOpenOption.WRITE)) {
+      channel.truncate(length);
+    }
+  }
+
+  /**
+   * Writes the lines formatted from each match to a buffered writer
+   */
+  static class LineSink implements MatchSink {
+    private final PrintWriter writer;
+    private final String output;
+    // length of the output before it was appended to
+    private final long start;
+    private final Function<Match, Stream<String>> format;
+
+    LineSink(PrintWriter writer, String output, long start,
+             Function<Match, Stream<String>> format) {
+      super();
+      this.writer = writer;
+      this.output = output;
+      this.start = start;
+      this.format = format;
+    }
+
+    @Override
+    public void write(List<Match> matches) throws IOException {
+      for (Match match : matches) {
+        format.apply(match).forEach(writer::println);
+      }
+      KDMatch.checkError(writer, output);
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+      KDMatch.checkError(writer, output);
+    }
+
+    @Override
+    public void abort() throws IOException {
+      // anything still buffered is flushed, but truncated away again
+      writer.close();
+      truncate(output, start);
+    }
+  }
+}
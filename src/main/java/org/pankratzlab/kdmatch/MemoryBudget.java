@@ -0,0 +1,81 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the memory held by communities being optimized at the same time. Each community estimates
+ * the memory its solver will need before it starts, and waits until that much of the budget is
+ * free. Communities that would not fit in the budget even on their own must use a solver that
+ * needs less memory.
+ */
+class MemoryBudget {
+  // the semaphore counts in units of this many bytes, so that large budgets fit in an int
+  private static final long BYTES_PER_PERMIT = 1024;
+  // per-row/column working arrays of the Hungarian algorithm (labels, slack, matching, ...)
+  private static final long HUNGARIAN_BYTES_PER_DIM = 8 * 3 + 4 * 4 + 1;
+  // rough size of a candidate edge in the greedy matcher, including sorted copies
+  private static final long GREEDY_BYTES_PER_EDGE = 64;
+
+  private final long bytes;
+  private final Semaphore permits;
+
+  /**
+   * @param bytes total memory available to communities being optimized at the same time
+   */
+  MemoryBudget(long bytes) {
+    super();
+    this.bytes = bytes;
+    this.permits = new Semaphore(toPermits(bytes), true);
+  }
+
+  private static int toPermits(long bytes) {
+    return (int) Math.min(Integer.MAX_VALUE, (bytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT);
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return true if the required memory fits in the budget when nothing else is running
+   */
+  boolean fits(long required) {
+    return required <= bytes;
+  }
+
+  /**
+   * Wait until the required memory is free, see {@link #fits(long)}
+   */
+  void acquire(long required) throws InterruptedException {
+    permits.acquire(toPermits(Math.min(required, bytes)));
+  }
+
+  void release(long required) {
+    permits.release(toPermits(Math.min(required, bytes)));
+  }
+
+  /**
+   * @return the memory needed to solve a community with the Hungarian algorithm: one cost row per
+   *         case (shared by its replicas) and the padded square matrix the algorithm works on
+   */
+  static long estimateHungarianBytes(int numCases, int numSelect, int numControls) {
+    long dim = Math.max((long) numCases * numSelect, numControls);
+    return 8L * numCases * numControls + 8 * dim * dim + HUNGARIAN_BYTES_PER_DIM * dim;
+  }
+
+  /**
+   * @return the memory needed to solve a community in sequential rounds, which is largest for the
+   *         first round (cases x all controls)
+   */
+  static long estimateSequentialBytes(int numCases, int numControls) {
+    long dim = Math.max(numCases, numControls);
+    return 8L * numCases * numControls + 8 * dim * dim + HUNGARIAN_BYTES_PER_DIM * dim;
+  }
+
+  /**
+   * @return the memory needed to select greedily from the given number of candidate edges
+   */
+  static long estimateGreedyBytes(long numEdges) {
+    return GREEDY_BYTES_PER_EDGE * numEdges;
+  }
+}
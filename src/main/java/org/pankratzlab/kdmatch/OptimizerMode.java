@@ -0,0 +1,32 @@
+package org.pankratzlab.kdmatch;
+
+/**
+ * How duplicated selections are resolved within each community
+ */
+public enum OptimizerMode {
+  /**
+   * Minimize the total distance with the Hungarian algorithm (optimal, O(n^3))
+   */
+  HUNGARIAN,
+  /**
+   * Assign the nearest case-control pairs greedily without replacement, then refine with local
+   * swaps (near-optimal, O(E log E) in the number of candidate edges). Useful for quickly screening
+   * designs before committing to a full optimal run
+   */
+  GREEDY,
+  /**
+   * Select one control per case per round with the Hungarian algorithm, removing each round's
+   * selections before the next. Each round solves a cases x controls matrix, rather than the
+   * (cases * numSelect) x controls matrix of {@link #HUNGARIAN} with every case replicated
+   * numSelect times, so the matrices are numSelect times shorter and the square matrix the
+   * Hungarian algorithm pads them to can be up to numSelect^2 times smaller. This can be the
+   * difference between a large community fitting in memory or not.
+   * <p>
+   * The trade-off is that each round is only optimal given the previous rounds: a control taken by
+   * one case in an early round is no longer available to another case that needed it more in a later
+   * round, so the total distance can be higher than {@link #HUNGARIAN}, and cases are more likely to
+   * end up short of controls. Its selections are therefore reported as not optimal, unless a single
+   * control is selected for each case
+   */
+  SEQUENTIAL;
+}
@@ -0,0 +1,244 @@
+package org.pankratzlab.kdmatch;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Settings for {@link SelectOptimizedNeighbors#optimizeDuplicates(java.util.List, int,
+ * OptimizerOptions, java.util.logging.Logger)}. Setters return this instance so that options can be
+ * chained.
+ */
+public class OptimizerOptions {
+  private int threads = 1;
+  // null means unbounded
+  private Duration communityTimeBudget;
+  private Duration totalTimeBudget;
+  private boolean adaptive = false;
+  private OptimizerMode mode = OptimizerMode.HUNGARIAN;
+  // 0 means communities are never split
+  private int maxCommunitySize = 0;
+  private Duration progressInterval = Duration.ofSeconds(30);
+  // 0 means a share of the maximum heap size
+  private long memoryBudget = 0;
+  // null to match all cases from scratch
+  private Path previousMatches;
+  private boolean streaming = false;
+  // -1 for full precision
+  private int outputPrecision = -1;
+  private boolean binaryOutput = false;
+  // null when cases and controls are read from separate files
+  private String statusColumn;
+  private String groupColumn;
+  // null to run without saving progress
+  private Path checkpoint;
+
+  public OptimizerOptions() {
+    super();
+  }
+
+  /**
+   * @param threads number of threads used to optimize communities
+   */
+  public OptimizerOptions threads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * @param budget maximum time spent optimally solving a single community before falling back to a
+   *          greedy selection, or null for no limit
+   */
+  public OptimizerOptions communityTimeBudget(Duration budget) {
+    this.communityTimeBudget = budget;
+    return this;
+  }
+
+  /**
+   * @param budget maximum time spent optimally solving all communities; communities still running
+   *          or not yet started when it runs out fall back to a greedy selection. null for no limit
+   */
+  public OptimizerOptions totalTimeBudget(Duration budget) {
+    this.totalTimeBudget = budget;
+    return this;
+  }
+
+  /**
+   * @param adaptive if true, the number of neighbors queried is chosen per case, starting near the
+   *          final number needed and growing only for cases that need more (see
+   *          {@link AdaptiveNeighborSelection})
+   */
+  public OptimizerOptions adaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+    return this;
+  }
+
+  /**
+   * @param mode how duplicated selections are resolved
+   */
+  public OptimizerOptions mode(OptimizerMode mode) {
+    this.mode = mode;
+    return this;
+  }
+
+  /**
+   * @param maxCommunitySize communities with more cases than this are split into pieces that are
+   *          solved independently, with conflicts between the pieces repaired afterwards (see
+   *          {@link CommunityPartitioner}). 0 to never split communities
+   */
+  public OptimizerOptions maxCommunitySize(int maxCommunitySize) {
+    this.maxCommunitySize = maxCommunitySize;
+    return this;
+  }
+
+  /**
+   * @param interval how often the progress of a long running optimization of a single community is
+   *          logged
+   */
+  public OptimizerOptions progressInterval(Duration interval) {
+    this.progressInterval = interval;
+    return this;
+  }
+
+  /**
+   * @param bytes memory available to communities being optimized at the same time. Communities wait
+   *          for their estimated memory to be free before they start, and communities that would
+   *          not fit on their own use a solver needing less memory. 0 (the default) for three
+   *          quarters of the maximum heap size
+   */
+  public OptimizerOptions memoryBudget(long bytes) {
+    this.memoryBudget = bytes;
+    return this;
+  }
+
+  /**
+   * @param previousMatches the optimized output of a previous run against the same controls. If
+   *          set, the cases are added to it (see {@link IncrementalMatching}) rather than matched
+   *          from scratch; the output directory should differ from the previous run's, since output
+   *          files are appended to. null to match from scratch
+   */
+  public OptimizerOptions previousMatches(Path previousMatches) {
+    this.previousMatches = previousMatches;
+    return this;
+  }
+
+  /**
+   * @param streaming if true, neighbors are queried in chunks, and the baseline output for each
+   *          chunk is written while the next chunks are queried (see {@link StreamingPipeline})
+   */
+  public OptimizerOptions streaming(boolean streaming) {
+    this.streaming = streaming;
+    return this;
+  }
+
+  /**
+   * @param precision number of decimal places of the numbers in the match output, which is faster
+   *          to write and gives smaller files. -1 (the default) to write numbers in full (as by
+   *          {@link Double#toString(double)}). At most 17
+   */
+  public OptimizerOptions outputPrecision(int precision) {
+    if (precision < -1 || precision > MatchFormatter.MAX_PRECISION) {
+      throw new IllegalArgumentException("Output precision must be -1 (full precision) or between "
+                                         + "0 and " + MatchFormatter.MAX_PRECISION + ", not "
+                                         + precision);
+    }
+    this.outputPrecision = precision;
+    return this;
+  }
+
+  /**
+   * @param binaryOutput if true, the match outputs are written in the compact binary format of
+   *          {@link BinaryMatchFile} instead of as tab delimited text
+   */
+  public OptimizerOptions binaryOutput(boolean binaryOutput) {
+    this.binaryOutput = binaryOutput;
+    return this;
+  }
+
+  /**
+   * @param statusColumn name of the case (1) / control (0) status column of a single input file
+   *          holding the whole cohort, which is then split into cases and controls as it is read
+   *          (see {@link SampleFile})
+   */
+  public OptimizerOptions statusColumn(String statusColumn) {
+    this.statusColumn = statusColumn;
+    return this;
+  }
+
+  /**
+   * @param groupColumn name of the column holding the group of each sample, reported in the outputs
+   */
+  public OptimizerOptions groupColumn(String groupColumn) {
+    this.groupColumn = groupColumn;
+    return this;
+  }
+
+  /**
+   * @param checkpoint directory to save the progress of the run to (see {@link Checkpoint}). A run
+   *          restarted with the same arguments resumes from it, and rewrites the outputs rather
+   *          than adding to them
+   */
+  public OptimizerOptions checkpoint(Path checkpoint) {
+    this.checkpoint = checkpoint;
+    return this;
+  }
+
+  int getThreads() {
+    return threads;
+  }
+
+  Duration getCommunityTimeBudget() {
+    return communityTimeBudget;
+  }
+
+  Duration getTotalTimeBudget() {
+    return totalTimeBudget;
+  }
+
+  boolean isAdaptive() {
+    return adaptive;
+  }
+
+  OptimizerMode getMode() {
+    return mode;
+  }
+
+  int getMaxCommunitySize() {
+    return maxCommunitySize;
+  }
+
+  Duration getProgressInterval() {
+    return progressInterval;
+  }
+
+  long getMemoryBudget() {
+    return memoryBudget > 0 ? memoryBudget : Runtime.getRuntime().maxMemory() / 4 * 3;
+  }
+
+  Path getPreviousMatches() {
+    return previousMatches;
+  }
+
+  boolean isStreaming() {
+    return streaming;
+  }
+
+  int getOutputPrecision() {
+    return outputPrecision;
+  }
+
+  boolean isBinaryOutput() {
+    return binaryOutput;
+  }
+
+  String getStatusColumn() {
+    return statusColumn;
+  }
+
+  String getGroupColumn() {
+    return groupColumn;
+  }
+
+  Path getCheckpoint() {
+    return checkpoint;
+  }
+}
@@ -12,6 +12,7 @@ public class Sample {
 		super();
 		ID = iD;
 		this.dim = dim;
+		this.group = "";
 	}
 
 	public Sample(String iD, double[] dim, int status, String group) {
@@ -52,6 +53,8 @@ public class Sample {
 	int status;
 	// stores group for forced matching
 	String group;
+	// dense index assigned by a SampleStore, -1 if not interned
+	int index = -1;
 
 	String getOutput() {
 		StringJoiner j = new StringJoiner("\t");
@@ -0,0 +1,722 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A tab delimited sample file: a header, then one sample per line with an ID followed by the data
+ * columns.
+ * <p>
+ * Files are read in large blocks that are split at line boundaries and parsed in parallel, straight
+ * from the bytes (without splitting lines into Strings), which is much faster than parsing lines
+ * one at a time for large files. Gzip compressed files are read directly, decompressing in the
+ * background while the blocks decompressed so far are parsed. A {@link Reader} hands the parsed
+ * blocks to the caller in order, as they are parsed, so that e.g. the controls can be added to the
+ * tree without holding the whole file in memory first.
+ * <p>
+ * A file can also hold a whole cohort, with a status column (1 for cases, 0 for controls) and
+ * optionally a group column anywhere after the ID. These columns are not data columns: they are
+ * stored in each {@link Sample}, and the samples are split into cases and controls as each block
+ * is parsed. Rows with any other status are skipped.
+ */
+class SampleFile {
+  // nominal size of the blocks parsed in parallel
+  private static final int BLOCK_SIZE = 8 << 20;
+  // size of the reads used to find line boundaries
+  private static final int PROBE_SIZE = 4096;
+  // largest integer below which every integer is exactly representable as a double (2^53)
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+  // exact powers of ten, for the fast path of parseDouble
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final String[] header;
+  private final List<Sample> samples;
+  private final List<Sample> cases;
+  private final List<Sample> controls;
+  private final int skipped;
+
+  private SampleFile(String[] header, List<Block> blocks) {
+    super();
+    this.header = header;
+    this.samples = new ArrayList<>();
+    this.cases = new ArrayList<>();
+    this.controls = new ArrayList<>();
+    int skippedRows = 0;
+    for (Block block : blocks) {
+      samples.addAll(block.samples);
+      cases.addAll(block.cases);
+      controls.addAll(block.controls);
+      skippedRows += block.skipped;
+    }
+    this.skipped = skippedRows;
+  }
+
+  /**
+   * @return the ID and data columns of the header line (without any status or group column)
+   */
+  String[] getHeader() {
+    return header;
+  }
+
+  /**
+   * @return the samples, in the order of the file. Empty for a cohort file, whose samples are split
+   *         into {@link #getCases()} and {@link #getControls()} instead
+   */
+  List<Sample> getSamples() {
+    return samples;
+  }
+
+  /**
+   * @return the cases (status 1) of a cohort file, in the order of the file
+   */
+  List<Sample> getCases() {
+    return cases;
+  }
+
+  /**
+   * @return the controls (status 0) of a cohort file, in the order of the file
+   */
+  List<Sample> getControls() {
+    return controls;
+  }
+
+  /**
+   * @return the number of rows of a cohort file skipped for having neither case nor control status
+   */
+  int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @param path a plain text, gzip compressed or binary (see {@link BinarySampleFile}) sample file
+   */
+  static SampleFile load(Path path) throws IOException {
+    return load(path, null, null, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param path a plain text or gzip compressed sample file, or a binary one (see
+   *          {@link BinarySampleFile}) if no columns are given
+   * @param statusColumn name of the case/control status column, or null if there is none
+   * @param groupColumn name of the group column, or null if there is none
+   * @param threads number of threads parsing blocks
+   */
+  static SampleFile load(Path path, String statusColumn, String groupColumn,
+                         int threads) throws IOException {
+    try (Reader reader = Reader.open(path, statusColumn, groupColumn, threads)) {
+      List<Block> blocks = new ArrayList<>();
+      Block block;
+      while ((block = reader.next()) != null) {
+        blocks.add(block);
+      }
+      return new SampleFile(reader.getHeader(), blocks);
+    }
+  }
+
+  /**
+   * Reads a sample file block by block. The next few blocks are read and parsed (in parallel, on a
+   * pool of the given number of threads) while the caller consumes the current one, so only a
+   * bounded number of blocks are held at a time. A binary file is mapped rather than parsed, so is
+   * a single block.
+   */
+  static class Reader implements Closeable {
+    private final String[] header;
+    private final Columns columns;
+    private final RawBlocks raw;
+    private final ForkJoinPool pool;
+    private final int maxParsing;
+    private final Deque<CompletableFuture<Block>> parsing = new ArrayDeque<>();
+
+    private Reader(Columns columns, RawBlocks raw, int threads) {
+      super();
+      this.header = columns.dataHeader;
+      this.columns = columns;
+      this.raw = raw;
+      this.pool = new ForkJoinPool(Math.max(1, threads));
+      this.maxParsing = 2 * pool.getParallelism() + 1;
+    }
+
+    private Reader(String[] header, Block block) {
+      super();
+      this.header = header;
+      this.columns = null;
+      this.raw = () -> null;
+      this.pool = new ForkJoinPool(1);
+      this.maxParsing = 1;
+      parsing.add(CompletableFuture.completedFuture(block));
+    }
+
+    /**
+     * @param path a plain text or gzip compressed sample file, or a binary one (see
+     *          {@link BinarySampleFile}) if no columns are given
+     * @param statusColumn name of the case/control status column, or null if there is none
+     * @param groupColumn name of the group column, or null if there is none
+     * @param threads number of threads parsing blocks
+     */
+    static Reader open(Path path, String statusColumn, String groupColumn,
+                       int threads) throws IOException {
+      if (BinarySampleFile.isBinary(path)) {
+        if (statusColumn != null || groupColumn != null) {
+          throw new IllegalArgumentException("Binary sample file " + path
+                                             + " has no status or group columns");
+        }
+        BinarySampleFile binary = BinarySampleFile.open(path);
+        Block block = new Block();
+        block.samples.addAll(binary.getSamples());
+        return new Reader(binary.getHeader(), block);
+      }
+      InputStream in = BackgroundGzipInputStream.open(path);
+      RawBlocks raw;
+      if (in instanceof BackgroundGzipInputStream) {
+        raw = new StreamBlocks(in);
+      } else {
+        in.close();
+        raw = new ChannelBlocks(FileChannel.open(path, StandardOpenOption.READ));
+      }
+      try {
+        String headerLine = raw.header();
+        Columns columns = new Columns(headerLine.trim().split("\t"), statusColumn, groupColumn);
+        return new Reader(columns, raw, threads);
+      } catch (IOException | RuntimeException e) {
+        raw.close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return the ID and data columns of the header line (without any status or group column)
+     */
+    String[] getHeader() {
+      return header;
+    }
+
+    /**
+     * @return the next block, or null at the end of the file
+     */
+    private Block next() throws IOException {
+      byte[] block;
+      while (parsing.size() < maxParsing && (block = raw.next()) != null) {
+        byte[] toParse = block;
+        parsing.add(CompletableFuture.supplyAsync(() -> parseBlock(toParse, columns), pool));
+      }
+      return parsing.isEmpty() ? null : join(parsing.remove());
+    }
+
+    /**
+     * @return the samples, in the order of the file, read as the stream is consumed. The reader is
+     *         closed once the stream reaches the end of the file, or reading fails
+     */
+    Stream<Sample> samples() {
+      Spliterator<Block> blocks = new Spliterators.AbstractSpliterator<Block>(Long.MAX_VALUE,
+                                                                              Spliterator.ORDERED) {
+        @Override
+        public boolean tryAdvance(Consumer<? super Block> action) {
+          Block block = nextOrClose();
+          if (block == null) {
+            return false;
+          }
+          action.accept(block);
+          return true;
+        }
+      };
+      return StreamSupport.stream(blocks, false).flatMap(b -> b.samples.stream());
+    }
+
+    private Block nextOrClose() {
+      try {
+        Block block = next();
+        if (block == null) {
+          close();
+        }
+        return block;
+      } catch (IOException | RuntimeException e) {
+        try {
+          close();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        if (e instanceof IOException) {
+          throw new UncheckedIOException((IOException) e);
+        }
+        throw (RuntimeException) e;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      parsing.forEach(p -> p.cancel(false));
+      parsing.clear();
+      pool.shutdownNow();
+      raw.close();
+    }
+  }
+
+  /**
+   * The blocks of a file (after the header), each holding whole lines
+   */
+  private interface RawBlocks extends Closeable {
+    /**
+     * @return the header line, which must be read before the blocks
+     */
+    default String header() throws IOException {
+      return "";
+    }
+
+    /**
+     * @return the next block, or null at the end of the file
+     */
+    byte[] next() throws IOException;
+
+    @Override
+    default void close() throws IOException {}
+  }
+
+  /**
+   * Blocks of a file that can be read at arbitrary positions, found by probing for the first line
+   * end after each nominal block size
+   */
+  private static class ChannelBlocks implements RawBlocks {
+    private final FileChannel channel;
+    private final long size;
+    private long position = 0;
+
+    ChannelBlocks(FileChannel channel) throws IOException {
+      super();
+      this.channel = channel;
+      this.size = channel.size();
+    }
+
+    @Override
+    public String header() throws IOException {
+      long headerEnd = findLineEnd(channel, 0, size);
+      position = Math.min(size, headerEnd + 1);
+      return new String(read(channel, 0, headerEnd), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+      if (position >= size) {
+        return null;
+      }
+      // blocks start after a newline, so that each holds whole lines
+      long end = Math.min(size, findLineEnd(channel, position + BLOCK_SIZE, size) + 1);
+      byte[] block = read(channel, position, end);
+      position = end;
+      return block;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Blocks of a stream (that can not be read at arbitrary positions), each ending after the last
+   * complete line read into a buffer of the nominal block size
+   */
+  private static class StreamBlocks implements RawBlocks {
+    private final InputStream in;
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int length = 0;
+    private boolean eof = false;
+
+    StreamBlocks(InputStream in) {
+      super();
+      this.in = in;
+    }
+
+    private void fill() throws IOException {
+      while (!eof && length < buffer.length) {
+        int read = in.read(buffer, length, buffer.length - length);
+        if (read < 0) {
+          eof = true;
+        } else {
+          length += read;
+        }
+      }
+    }
+
+    private void consume(int end) {
+      System.arraycopy(buffer, end, buffer, 0, length - end);
+      length -= end;
+    }
+
+    @Override
+    public String header() throws IOException {
+      while (true) {
+        fill();
+        int headerEnd = indexOf(buffer, length, (byte) '\n');
+        if (headerEnd < 0 && !eof) {
+          // a header longer than the buffer
+          buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+          continue;
+        }
+        if (headerEnd < 0) {
+          headerEnd = length;
+        }
+        String headerLine = new String(buffer, 0, headerEnd, StandardCharsets.UTF_8);
+        consume(Math.min(length, headerEnd + 1));
+        return headerLine;
+      }
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+      while (true) {
+        fill();
+        if (length == 0) {
+          return null;
+        }
+        // the block ends after the last complete line in the buffer
+        int end = eof ? length : lastIndexOf(buffer, length, (byte) '\n') + 1;
+        if (end == 0) {
+          // a single line longer than the buffer
+          buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+          continue;
+        }
+        byte[] block = Arrays.copyOfRange(buffer, 0, end);
+        consume(end);
+        return block;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static Block join(CompletableFuture<Block> parsed) {
+    try {
+      return parsed.join();
+    } catch (CompletionException e) {
+      // rethrow parse errors as they would be thrown when parsing in the same thread
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static int indexOf(byte[] bytes, int length, byte b) {
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(byte[] bytes, int length, byte b) {
+    for (int i = length - 1; i >= 0; i--) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the position of the first newline at or after from, or size if there is none
+   */
+  private static long findLineEnd(FileChannel channel, long from, long size) throws IOException {
+    ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+    for (long position = from; position < size; position += PROBE_SIZE) {
+      probe.clear();
+      int read = readFully(channel, probe, position, size);
+      for (int i = 0; i < read; i++) {
+        if (probe.get(i) == '\n') {
+          return position + i;
+        }
+      }
+    }
+    return size;
+  }
+
+  private static byte[] read(FileChannel channel, long from, long to) throws IOException {
+    if (to - from > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Line too long at byte " + from);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+    readFully(channel, buffer, from, to);
+    return buffer.array();
+  }
+
+  /**
+   * Positional reads, so that blocks can be read concurrently from the same channel
+   *
+   * @return the number of bytes read
+   */
+  private static int readFully(FileChannel channel, ByteBuffer buffer, long from,
+                               long size) throws IOException {
+    int total = 0;
+    while (buffer.hasRemaining() && from + total < size) {
+      int read = channel.read(buffer, from + total);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  private static Block parseBlock(byte[] block, Columns columns) {
+    Block parsed = new Block();
+    int lineStart = 0;
+    while (lineStart < block.length) {
+      int lineEnd = lineStart;
+      while (lineEnd < block.length && block[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      int end = lineEnd;
+      if (end > lineStart && block[end - 1] == '\r') {
+        end--;
+      }
+      if (end > lineStart) {
+        parsed.add(parseLine(block, lineStart, end, columns), columns);
+      }
+      lineStart = lineEnd + 1;
+    }
+    return parsed;
+  }
+
+  private static Sample parseLine(byte[] line, int from, int to, Columns columns) {
+    // trailing empty fields are ignored, as by String.split
+    while (to > from && line[to - 1] == '\t') {
+      to--;
+    }
+    int fields = 1;
+    for (int i = from; i < to; i++) {
+      if (line[i] == '\t') {
+        fields++;
+      }
+    }
+    int idEnd = from;
+    while (idEnd < to && line[idEnd] != '\t') {
+      idEnd++;
+    }
+    String id = new String(line, from, idEnd - from, StandardCharsets.UTF_8);
+    if (!columns.hasStatusOrGroup()) {
+      double[] dim = new double[fields - 1];
+      int fieldStart = idEnd + 1;
+      for (int d = 0; d < dim.length; d++) {
+        int fieldEnd = fieldStart;
+        while (fieldEnd < to && line[fieldEnd] != '\t') {
+          fieldEnd++;
+        }
+        dim[d] = parseDouble(line, fieldStart, fieldEnd);
+        fieldStart = fieldEnd + 1;
+      }
+      return new Sample(id, dim);
+    }
+    double[] dim = new double[columns.countData(fields)];
+    // a missing status (the field may have been trimmed) is neither case nor control
+    int status = columns.status < 0 ? 0 : -1;
+    String group = "";
+    int fieldStart = idEnd + 1;
+    int d = 0;
+    for (int f = 1; f < fields; f++) {
+      int fieldEnd = fieldStart;
+      while (fieldEnd < to && line[fieldEnd] != '\t') {
+        fieldEnd++;
+      }
+      if (f == columns.status) {
+        status = parseStatus(line, fieldStart, fieldEnd);
+      } else if (f == columns.group) {
+        group = new String(line, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8);
+      } else {
+        dim[d++] = parseDouble(line, fieldStart, fieldEnd);
+      }
+      fieldStart = fieldEnd + 1;
+    }
+    return new Sample(id, dim, status, group);
+  }
+
+  /**
+   * @return 1 for a case, 0 for a control, or -1 for anything else (e.g. NA)
+   */
+  private static int parseStatus(byte[] bytes, int from, int to) {
+    if (to - from == 1 && (bytes[from] == '0' || bytes[from] == '1')) {
+      return bytes[from] - '0';
+    }
+    return -1;
+  }
+
+  /**
+   * Positions of the status and group columns, if any, among the columns of a file
+   */
+  private static class Columns {
+    // -1 if the file has no such column
+    final int status;
+    final int group;
+    // the header without the status and group columns
+    final String[] dataHeader;
+
+    Columns(String[] header, String statusColumn, String groupColumn) {
+      super();
+      this.status = find(header, statusColumn);
+      this.group = find(header, groupColumn);
+      if (status >= 0 && status == group) {
+        throw new IllegalArgumentException("The status and group columns must differ");
+      }
+      this.dataHeader = IntStream.range(0, header.length).filter(c -> c != status && c != group)
+                                 .mapToObj(c -> header[c]).toArray(String[]::new);
+    }
+
+    private static int find(String[] header, String column) {
+      if (column == null) {
+        return -1;
+      }
+      // the first column holds the IDs
+      for (int c = 1; c < header.length; c++) {
+        if (header[c].equals(column)) {
+          return c;
+        }
+      }
+      throw new IllegalArgumentException("No column " + column + " in header "
+                                         + String.join("\t", header));
+    }
+
+    boolean hasStatusOrGroup() {
+      return status >= 0 || group >= 0;
+    }
+
+    /**
+     * @return the number of data columns among the given number of fields of a line
+     */
+    int countData(int fields) {
+      int data = fields - 1;
+      if (status >= 0 && status < fields) {
+        data--;
+      }
+      if (group >= 0 && group < fields) {
+        data--;
+      }
+      return data;
+    }
+  }
+
+  /**
+   * The samples parsed from one block, or its cases and controls (only) for a cohort file
+   */
+  private static class Block {
+    final List<Sample> samples = new ArrayList<>();
+    final List<Sample> cases = new ArrayList<>();
+    final List<Sample> controls = new ArrayList<>();
+    int skipped = 0;
+
+    void add(Sample sample, Columns columns) {
+      if (columns.status < 0) {
+        samples.add(sample);
+      } else if (sample.isValidCaseOrControl()) {
+        // kept once, as a case or a control
+        (sample.isCase() ? cases : controls).add(sample);
+      } else {
+        skipped++;
+      }
+    }
+  }
+
+  /**
+   * Parse a decimal number directly from bytes. Numbers whose digits fit exactly in a double (up to
+   * 15 or 16 significant digits) with a small exponent are computed with a single (correctly
+   * rounded) multiplication or division of exact values, which gives the same result as
+   * {@link Double#parseDouble(String)}; anything else is passed on to it.
+   */
+  static double parseDouble(byte[] bytes, int from, int to) {
+    int i = from;
+    boolean negative = false;
+    if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+      negative = bytes[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean anyDigits = false;
+    while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+      mantissa = mantissa * 10 + (bytes[i] - '0');
+      if (mantissa != 0) {
+        significantDigits++;
+      }
+      anyDigits = true;
+      i++;
+    }
+    if (i < to && bytes[i] == '.') {
+      i++;
+      while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+        mantissa = mantissa * 10 + (bytes[i] - '0');
+        if (mantissa != 0) {
+          significantDigits++;
+        }
+        exponent--;
+        anyDigits = true;
+        i++;
+      }
+    }
+    if (anyDigits && i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+        negativeExponent = bytes[i] == '-';
+        i++;
+      }
+      int explicitExponent = 0;
+      boolean anyExponentDigits = false;
+      while (i < to && bytes[i] >= '0' && bytes[i] <= '9' && explicitExponent < 1000) {
+        explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+        anyExponentDigits = true;
+        i++;
+      }
+      if (!anyExponentDigits) {
+        anyDigits = false;
+      }
+      exponent += negativeExponent ? -explicitExponent : explicitExponent;
+    }
+    // the mantissa is exact as a double
+    if (anyDigits && i == to && significantDigits <= 18 && mantissa <= MAX_EXACT_MANTISSA) {
+      double value = mantissa;
+      if (mantissa == 0 || exponent == 0) {
+        return negative ? -value : value;
+      }
+      if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+        value *= POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+      }
+      if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+        value /= POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+      }
+    }
+    return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+  }
+}
@@ -0,0 +1,36 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interns samples to dense int indices (0, 1, 2, ...) in the order they are added, so that
+ * selections can be tracked with primitive arrays rather than sets of String IDs. Adding is not
+ * thread safe.
+ */
+class SampleStore {
+  private final List<Sample> samples;
+
+  SampleStore() {
+    this.samples = new ArrayList<>();
+  }
+
+  /**
+   * Assign the next index to the sample
+   * 
+   * @return the sample
+   */
+  Sample add(Sample sample) {
+    sample.index = samples.size();
+    samples.add(sample);
+    return sample;
+  }
+
+  Sample get(int index) {
+    return samples.get(index);
+  }
+
+  int size() {
+    return samples.size();
+  }
+}
@@ -1,37 +1,54 @@
 package org.pankratzlab.kdmatch;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class SelectOptimizedNeighbors {
-  private SelectOptimizedNeighbors() {}
+  // smallest cost matrix (in cells per replica) that is built in parallel
+  private static final long PARALLEL_BUILD_CELLS = 1 << 20;
+  private static final double MEGABYTE = 1 << 20;
 
-  private static boolean connected(Set<String> idSet, Match match) {
-    return !Collections.disjoint(idSet, match.getMatchIdSet());
-  }
+  private SelectOptimizedNeighbors() {}
 
-  // NOTE this will not scale super well
-  private static List<List<Match>> getCommunities(List<Match> matchesWithDuplicates) {
+  /**
+   * Group matches into communities that are connected by at least one shared control
+   */
+  static List<List<Match>> getCommunities(List<Match> matchesWithDuplicates,
+                                          SampleStore controls) {
 
     CommunityDetectionGraph g = new CommunityDetectionGraph(matchesWithDuplicates.size());
+    // the first match seen for each control; every other match sharing that control is connected to
+    // it, which is enough to recover the connected components
+    int[] firstMatch = new int[controls.size()];
+    Arrays.fill(firstMatch, -1);
     for (int i = 0; i < matchesWithDuplicates.size(); i++) {
-      Set<String> idi = matchesWithDuplicates.get(i).getMatchIdSet();
-      for (int j = 0; j < matchesWithDuplicates.size(); j++) {
-        // do not need to compare to self, and is an undirected graph ... so i > j
-        if (i > j && connected(idi, matchesWithDuplicates.get(j))) {
-          g.addEdge(i, j);
+      Match match = matchesWithDuplicates.get(i);
+      for (int j = 0; j < match.size(); j++) {
+        int control = match.getMatchIndex(j);
+        if (firstMatch[control] == -1) {
+          firstMatch[control] = i;
+        } else if (firstMatch[control] != i) {
+          g.addEdge(i, firstMatch[control]);
         }
       }
     }
@@ -49,36 +66,121 @@ public class SelectOptimizedNeighbors {
     return communities;
   }
 
+  /**
+   * @return copies of the matches whose controls are interned in one new store, controls with the
+   *         same ID being the same control
+   */
+  private static List<Match> internByID(List<Match> matches) {
+    SampleStore controls = new SampleStore();
+    Map<String, Sample> interned = new HashMap<>();
+    List<Match> copies = new ArrayList<>(matches.size());
+    for (Match match : matches) {
+      Match copy = new Match(match.sample, controls, new int[0], new double[0]);
+      for (int i = 0; i < match.size(); i++) {
+        Sample s = match.getMatch(i);
+        // copied, leaving the index of the sample in its own store as it is
+        Sample control = interned.computeIfAbsent(s.getID(), id -> {
+          return controls.add(new Sample(s.ID, s.dim, s.status, s.group));
+        });
+        copy.addMatch(control.index, match.getDistance(i));
+      }
+      copy.setHungarian(match.isHungarian());
+      copy.setOptimal(match.isOptimal());
+      copies.add(copy);
+    }
+    return copies;
+  }
+
   public static Stream<Match> optimizeDuplicates(List<Match> matches, int numSelect, int threads,
                                                  Logger log) throws InterruptedException,
                                                              ExecutionException {
+    return optimizeDuplicates(matches, numSelect, new OptimizerOptions().threads(threads), log);
+  }
+
+  public static Stream<Match> optimizeDuplicates(List<Match> matches, int numSelect,
+                                                 OptimizerOptions options,
+                                                 Logger log) throws InterruptedException,
+                                                             ExecutionException {
+    return optimizeDuplicates(matches, numSelect, options, null, log);
+  }
+
+  /**
+   * @param warmStart labels and matchings of previous solutions to start the Hungarian algorithm
+   *          from (and that are updated with the new solutions), or null to always start from
+   *          scratch
+   */
+  static Stream<Match> optimizeDuplicates(List<Match> matches, int numSelect,
+                                          OptimizerOptions options, WarmStartCache warmStart,
+                                          Logger log) throws InterruptedException,
+                                                      ExecutionException {
+    return optimizeDuplicates(matches, numSelect, options, warmStart, null, log);
+  }
+
+  /**
+   * @param warmStart see {@link #optimizeDuplicates(List, int, OptimizerOptions, WarmStartCache,
+   *          Logger)}
+   * @param journal selections of the communities optimized by a previous run, which are reused,
+   *          and to which each community is added as it is optimized; or null
+   */
+  static Stream<Match> optimizeDuplicates(List<Match> matches, int numSelect,
+                                          OptimizerOptions options, WarmStartCache warmStart,
+                                          CommunityJournal journal,
+                                          Logger log) throws InterruptedException,
+                                                      ExecutionException {
+    TimeBudget budget = new TimeBudget(options.getCommunityTimeBudget(),
+                                       options.getTotalTimeBudget());
+    return optimizeDuplicates(matches, numSelect, options, warmStart, journal, budget, log);
+  }
+
+  /**
+   * @param warmStart see {@link #optimizeDuplicates(List, int, OptimizerOptions, WarmStartCache,
+   *          Logger)}
+   * @param journal see {@link #optimizeDuplicates(List, int, OptimizerOptions, WarmStartCache,
+   *          CommunityJournal, Logger)}
+   * @param budget time budget of the run, which may be shared by several calls (e.g. the rounds of
+   *          {@link AdaptiveNeighborSelection}) so that the overall budget covers all of them
+   */
+  static Stream<Match> optimizeDuplicates(List<Match> matches, int numSelect,
+                                          OptimizerOptions options, WarmStartCache warmStart,
+                                          CommunityJournal journal, TimeBudget budget,
+                                          Logger log) throws InterruptedException,
+                                                      ExecutionException {
+
+    if (matches.isEmpty()) {
+      return matches.stream();
+    }
+    SampleStore first = matches.get(0).getControls();
+    if (matches.stream().anyMatch(m -> m.getControls() != first)) {
+      // e.g. matches built from lists of samples, each with a store of its own
+      matches = internByID(matches);
+    }
+    SampleStore controls = matches.get(0).getControls();
 
     log.info("counting occurrences of each control and finding duplicates");
 
-    Map<String, Long> duplicatedControlCounts = matches.stream().map(m -> m.matches)
-                                                       .flatMap(List::stream)
-                                                       .collect(Collectors.groupingBy(Sample::getID,
-                                                                                      Collectors.counting()))
-                                                       .entrySet().stream()
-                                                       .filter(map -> map.getValue() > 1)
-                                                       .collect(Collectors.toMap(Entry::getKey,
-                                                                                 Entry::getValue));
-    log.log(Level.INFO, "found  {0} duplicated controls", duplicatedControlCounts.size());
+    int[] controlCounts = new int[controls.size()];
+    for (Match match : matches) {
+      for (int i = 0; i < match.size(); i++) {
+        controlCounts[match.getMatchIndex(i)]++;
+      }
+    }
+    log.log(Level.INFO, "found  {0} duplicated controls",
+            Arrays.stream(controlCounts).filter(c -> c > 1).count());
 
     log.info("pruning selections that are uniquely matched at baseline");
 
     // These matches do not share any controls with another case, so are done
-    List<Match> uniqueMatches = matches.stream()
-                                       .filter(m -> m.getMatchIDList().stream()
-                                                     .noneMatch(duplicatedControlCounts::containsKey))
-                                       .collect(Collectors.toList());
-    log.log(Level.INFO, "{0} selections are uniquely matched at baseline", uniqueMatches.size());
-
+    List<Match> uniqueMatches = new ArrayList<>();
     // These matches share at least one control with another case, so will be optimized
-    List<Match> matchesWithDuplicates = matches.stream()
-                                               .filter(m -> m.getMatchIDList().stream()
-                                                             .anyMatch(duplicatedControlCounts::containsKey))
-                                               .collect(Collectors.toList());
+    List<Match> matchesWithDuplicates = new ArrayList<>();
+    for (Match match : matches) {
+      if (hasDuplicate(match, controlCounts)) {
+        matchesWithDuplicates.add(match);
+      } else {
+        uniqueMatches.add(match);
+      }
+    }
+    log.log(Level.INFO, "{0} selections are uniquely matched at baseline", uniqueMatches.size());
     log.log(Level.INFO, "{0} selections have non-unique matches at baseline",
             matchesWithDuplicates.size());
 
@@ -86,18 +188,56 @@ public class SelectOptimizedNeighbors {
       // form connected communities
       log.info("Forming  communities");
 
-      List<List<Match>> communities = getCommunities(matchesWithDuplicates);
+      List<List<Match>> communities = getCommunities(matchesWithDuplicates, controls);
       log.log(Level.INFO, "Optimizing selection within {0} communities", communities.size());
 
-      // Holds matches post optimization
-      List<Match> optimizedMatches = new ForkJoinPool(threads).submit(() ->
-
-      // parallel stream invoked here to process each community individually. Threading this way
-      // doesn't have a huge benefit (10-20% speedup with 6 threads, 100/10 selection), but helps.
-      communities.parallelStream().map(e -> getOptimizedMatches(e, numSelect, log))
-                 .flatMap(List::stream).collect(Collectors.toList())
-
-      ).get();
+      // Holds matches post optimization. Communities are dispatched largest first so that the most
+      // expensive ones do not start last and leave the other threads idle at the end
+      MemoryBudget memory = new MemoryBudget(options.getMemoryBudget());
+      List<List<List<Match>>> partitions = partition(communities, options.getMaxCommunitySize(),
+                                                     log);
+      // pieces of a split community share controls, so can not share the warm start cache
+      Set<List<Match>> splitPieces = Collections.newSetFromMap(new IdentityHashMap<>());
+      partitions.stream().filter(p -> p.size() > 1).forEach(splitPieces::addAll);
+      Fallbacks fallbacks = new Fallbacks();
+      Function<List<Match>, List<Match>> solver = c -> {
+        List<Match> journaled = journal == null ? null : journal.lookup(c);
+        if (journaled != null) {
+          return journaled;
+        }
+        WarmStartCache cache = splitPieces.contains(c) ? null : warmStart;
+        List<Match> selections = getCommunityMatches(c, numSelect, options, budget, memory, cache,
+                                                     fallbacks, log);
+        if (journal != null) {
+          try {
+            journal.record(selections);
+          } catch (IOException e) {
+            throw new IllegalStateException("Could not add a community to the journal", e);
+          }
+        }
+        return selections;
+      };
+      List<List<Match>> pieces = partitions.stream().flatMap(List::stream)
+                                           .collect(Collectors.toList());
+      List<List<Match>> optimizedPieces = CommunityScheduler.run(pieces,
+                                                                 c -> estimateCost(c, numSelect),
+                                                                 solver, options.getThreads(), log);
+      List<List<Match>> optimizedCommunities = repairPartitions(communities, partitions,
+                                                                optimizedPieces, numSelect, log);
+      reportGap(communities, optimizedCommunities, log);
+      List<Match> optimizedMatches = optimizedCommunities.stream().flatMap(List::stream)
+                                                         .collect(Collectors.toList());
+      if (fallbacks.greedy.get() > 0) {
+        log.log(Level.WARNING,
+                "Time or memory budget ran out for {0} selections, which were matched greedily "
+                                + "instead",
+                fallbacks.greedy.get());
+      }
+      if (fallbacks.sequential.get() > 0) {
+        log.log(Level.WARNING,
+                "Memory budget: {0} selections were solved with SEQUENTIAL instead of HUNGARIAN",
+                fallbacks.sequential.get());
+      }
 
       if (optimizedMatches.size() != matchesWithDuplicates.size()) {
         throw new IllegalStateException("Mismatched number of matches");
@@ -109,64 +249,460 @@ public class SelectOptimizedNeighbors {
 
   }
 
-  private static List<Match> getOptimizedMatches(final List<Match> matchesWithDuplicates,
-                                                 int numSelect, Logger log) {
-    // Extract all unique control Samples that are matched to at least two cases
-    List<Sample> allUniqueControls = matchesWithDuplicates.stream().map(Match::getMatches)
-                                                          .flatMap(Collection::stream)
-                                                          .filter(Utils.distinctByKey(Sample::getID))
-                                                          .collect(Collectors.toList());
+  /**
+   * Counts of the selections that were not solved with the requested mode
+   */
+  private static class Fallbacks {
+    // matched greedily because the time or memory budget ran out
+    final AtomicLong greedy = new AtomicLong();
+    // solved with SEQUENTIAL rather than HUNGARIAN because of the memory budget
+    final AtomicLong sequential = new AtomicLong();
+  }
 
-    Map<Integer, Integer> mapOptimize = new HashMap<>();
+  private static boolean hasDuplicate(Match match, int[] controlCounts) {
+    for (int i = 0; i < match.size(); i++) {
+      if (controlCounts[match.getMatchIndex(i)] > 1) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-    double[][] costMatrix = new double[matchesWithDuplicates.size()
-                                       * numSelect][allUniqueControls.size()];
+  /**
+   * @return the pieces each community is solved in: the community itself, unless it has more than
+   *         maxCommunitySize cases (and maxCommunitySize is positive)
+   */
+  private static List<List<List<Match>>> partition(List<List<Match>> communities,
+                                                   int maxCommunitySize, Logger log) {
+    List<List<List<Match>>> partitions = new ArrayList<>(communities.size());
+    for (List<Match> community : communities) {
+      if (maxCommunitySize > 0 && community.size() > maxCommunitySize) {
+        List<List<Match>> pieces = CommunityPartitioner.split(community, maxCommunitySize);
+        log.log(Level.INFO, "Split a community of {0} cases into {1} pieces",
+                new Object[] {community.size(), pieces.size()});
+        partitions.add(pieces);
+      } else {
+        partitions.add(Collections.singletonList(community));
+      }
+    }
+    return partitions;
+  }
 
-    int row = 0;
-    // We replicate the cases in multiple rows so that "numSelect" of each case are evaluated at the
-    // same time
-    for (int i = 0; i < numSelect; i++) {
+  /**
+   * Combine the selections of the pieces of each community. Pieces of a split community were solved
+   * independently and may have selected the same control, so their selections are repaired (and
+   * marked as not optimal)
+   *
+   * @return the selections of each community, in the same order as the cases of the community
+   */
+  private static List<List<Match>> repairPartitions(List<List<Match>> communities,
+                                                    List<List<List<Match>>> partitions,
+                                                    List<List<Match>> optimizedPieces,
+                                                    int numSelect, Logger log) {
+    List<List<Match>> optimizedCommunities = new ArrayList<>(communities.size());
+    int piece = 0;
+    for (int c = 0; c < communities.size(); c++) {
+      List<Match> community = communities.get(c);
+      int numPieces = partitions.get(c).size();
+      if (numPieces == 1) {
+        optimizedCommunities.add(optimizedPieces.get(piece++));
+        continue;
+      }
+      Map<Sample, Match> selectionsByCase = new IdentityHashMap<>();
+      for (int p = 0; p < numPieces; p++, piece++) {
+        for (Match selection : optimizedPieces.get(piece)) {
+          selectionsByCase.put(selection.sample, selection);
+        }
+      }
+      List<Match> selections = community.stream().map(m -> selectionsByCase.get(m.sample))
+                                        .collect(Collectors.toList());
+      List<Match> repaired = GreedyMatcher.getRepairedMatches(community, numSelect, selections);
+      repaired.forEach(m -> m.setOptimal(false));
+      log.log(Level.INFO,
+              "Repaired a split community of {0} cases: {1} selections with total distance {2}, "
+                  + "compared to {3} selections with total distance {4} for its pieces solved "
+                  + "independently (with controls shared between pieces)",
+              new Object[] {community.size(), countSelections(repaired),
+                            getTotalDistance(repaired), countSelections(selections),
+                            getTotalDistance(selections)});
+      optimizedCommunities.add(repaired);
+    }
+    return optimizedCommunities;
+  }
 
-      int map = 0;
-      for (Match match : matchesWithDuplicates) {
-        mapOptimize.put(row, map);
-        map++;
-        int col = 0;
-        for (Sample sample : allUniqueControls) {
-          if (match.hasMatch(sample.ID)) {
-            costMatrix[row][col] = match.getDistanceFrom(sample);
-          } else {
-            // set to max value if the sample does not share a particular control as a nearest
-            // neighbor
-            costMatrix[row][col] = Double.MAX_VALUE;
+  private static int countSelections(List<Match> selections) {
+    return selections.stream().mapToInt(Match::size).sum();
+  }
+
+  private static double getTotalDistance(List<Match> selections) {
+    double total = 0;
+    for (Match selection : selections) {
+      for (int j = 0; j < selection.size(); j++) {
+        total += selection.getDistance(j);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return the estimated cost of optimizing a community, as the size of its cost matrix (rows x
+   *         candidate columns)
+   */
+  private static long estimateCost(List<Match> community, int numSelect) {
+    return (long) community.size() * numSelect * new CommunityControls(community).size();
+  }
+
+  /**
+   * Log the total distance of the selections against a lower bound, the sum over cases of the
+   * distances to their nearest candidates (as many as were selected for them)
+   */
+  private static void reportGap(List<List<Match>> communities,
+                                List<List<Match>> optimizedCommunities, Logger log) {
+    double total = 0;
+    double bound = 0;
+    for (int c = 0; c < communities.size(); c++) {
+      for (int i = 0; i < communities.get(c).size(); i++) {
+        Match candidates = communities.get(c).get(i);
+        Match selection = optimizedCommunities.get(c).get(i);
+        for (int j = 0; j < selection.size(); j++) {
+          total += selection.getDistance(j);
+          bound += candidates.getDistance(j);
+        }
+      }
+    }
+    log.log(Level.INFO,
+            "Total distance of optimized selections is {0}, at most {1}% above the lower bound {2}",
+            new Object[] {total, bound > 0 ? 100 * (total - bound) / bound : 0, bound});
+  }
+
+  /**
+   * Resolve duplicated selections in a community using the selected mode (or a mode that needs less
+   * memory, if the community would not fit in the memory budget), unless the community is small or
+   * simple enough to be solved directly. Waits until the memory needed is free before solving
+   */
+  private static List<Match> getCommunityMatches(final List<Match> community, int numSelect,
+                                                 OptimizerOptions options, TimeBudget budget,
+                                                 MemoryBudget memory, WarmStartCache warmStart,
+                                                 Fallbacks fallbacks, Logger log) {
+    List<Match> trivialMatches = SmallCommunitySolver.solve(community, numSelect);
+    if (trivialMatches != null) {
+      return trivialMatches;
+    }
+    int numControls = new CommunityControls(community).size();
+    OptimizerMode mode = chooseMode(community, numSelect, numControls, options.getMode(), memory,
+                                    log);
+    long required = estimateBytes(mode, community, numSelect, numControls);
+    try {
+      memory.acquire(required);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted waiting for memory to optimize a community");
+    }
+    try {
+      switch (mode) {
+        case GREEDY:
+          List<Match> refinedMatches = GreedyMatcher.getRefinedMatches(community, numSelect);
+          refinedMatches.forEach(m -> m.setOptimal(false));
+          if (options.getMode() != OptimizerMode.GREEDY) {
+            fallbacks.greedy.addAndGet(refinedMatches.size());
+          }
+          return refinedMatches;
+        case SEQUENTIAL:
+        case HUNGARIAN:
+        default:
+          return getBudgetedMatches(community, numSelect, mode, options, budget, warmStart,
+                                    fallbacks, log);
+      }
+    } finally {
+      memory.release(required);
+    }
+  }
+
+  /**
+   * @return the requested mode if the community fits in the memory budget with it, otherwise the
+   *         first mode needing less memory that fits (or {@link OptimizerMode#GREEDY}, the least)
+   */
+  private static OptimizerMode chooseMode(List<Match> community, int numSelect, int numControls,
+                                          OptimizerMode requested, MemoryBudget memory,
+                                          Logger log) {
+    OptimizerMode mode = requested;
+    while (mode != OptimizerMode.GREEDY
+           && !memory.fits(estimateBytes(mode, community, numSelect, numControls))) {
+      mode = mode == OptimizerMode.HUNGARIAN ? OptimizerMode.SEQUENTIAL : OptimizerMode.GREEDY;
+    }
+    if (mode != requested) {
+      log.log(Level.WARNING,
+              "A community of {0} cases and {1} controls needs an estimated {2} MB with the {3} "
+                                + "solver, more than the memory budget of {4} MB; using the {5} "
+                                + "solver instead",
+              new Object[] {community.size(), numControls,
+                            estimateBytes(requested, community, numSelect, numControls) / MEGABYTE,
+                            requested, memory.getBytes() / MEGABYTE, mode});
+    }
+    return mode;
+  }
+
+  private static long estimateBytes(OptimizerMode mode, List<Match> community, int numSelect,
+                                    int numControls) {
+    switch (mode) {
+      case GREEDY:
+        return MemoryBudget.estimateGreedyBytes(community.stream().mapToLong(Match::size).sum());
+      case SEQUENTIAL:
+        return MemoryBudget.estimateSequentialBytes(community.size(), numControls);
+      case HUNGARIAN:
+      default:
+        return MemoryBudget.estimateHungarianBytes(community.size(), numSelect, numControls);
+    }
+  }
+
+  /**
+   * Optimize a community within the time budget, falling back to a greedy selection (marked as not
+   * optimal) if the budget runs out
+   */
+  private static List<Match> getBudgetedMatches(final List<Match> community, int numSelect,
+                                                OptimizerMode mode, OptimizerOptions options,
+                                                TimeBudget budget, WarmStartCache warmStart,
+                                                Fallbacks fallbacks, Logger log) {
+    if (!budget.isExpired()) {
+      long deadline = budget.getCommunityDeadline();
+      Consumer<HungarianProgress> progress = p -> logProgress(community.size(), p, log);
+      try {
+        if (mode == OptimizerMode.SEQUENTIAL) {
+          Duration interval = options.getProgressInterval();
+          List<Match> sequentialMatches = getSequentialOptimizedMatches(community, numSelect,
+                                                                        deadline, progress,
+                                                                        interval, log);
+          if (options.getMode() != OptimizerMode.SEQUENTIAL) {
+            // chosen to fit the memory budget (see chooseMode)
+            fallbacks.sequential.addAndGet(sequentialMatches.size());
           }
-          col++;
+          return sequentialMatches;
         }
-        row++;
+        return getOptimizedMatches(community, numSelect, deadline, progress,
+                                   options.getProgressInterval(), warmStart, log);
+      } catch (PartialTimeoutException e) {
+        log.log(Level.WARNING, "Time budget ran out optimizing a community of {0} cases ({1})",
+                new Object[] {community.size(), e.getMessage()});
+        return getFallbackMatches(community, numSelect, e.partial, fallbacks);
+      } catch (TimeoutException e) {
+        log.log(Level.WARNING, "Time budget ran out optimizing a community of {0} cases ({1})",
+                new Object[] {community.size(), e.getMessage()});
+      }
+    }
+    return getFallbackMatches(community, numSelect, null, fallbacks);
+  }
+
+  /**
+   * @param partial the selections of an optimization that ran out of time, or null if there are
+   *          none
+   * @return a refined greedy selection (see {@link GreedyMatcher#getRefinedMatches(List, int)}),
+   *         or the partial selections refilled and refined, whichever selects more controls (or
+   *         has the lower total distance, if they select as many), marked as not optimal
+   */
+  private static List<Match> getFallbackMatches(List<Match> community, int numSelect,
+                                                List<Match> partial, Fallbacks fallbacks) {
+    List<Match> fallbackMatches = GreedyMatcher.getRefinedMatches(community, numSelect);
+    if (partial != null) {
+      List<Match> repaired = GreedyMatcher.getRepairedMatches(community, numSelect, partial);
+      int selected = countSelections(repaired) - countSelections(fallbackMatches);
+      if (selected > 0
+          || selected == 0 && getTotalDistance(repaired) < getTotalDistance(fallbackMatches)) {
+        fallbackMatches = repaired;
       }
     }
+    fallbackMatches.forEach(m -> m.setOptimal(false));
+    fallbacks.greedy.addAndGet(fallbackMatches.size());
+    return fallbackMatches;
+  }
+
+  /**
+   * A time out that holds the (partial) selections made before the deadline
+   */
+  private static class PartialTimeoutException extends TimeoutException {
+    private static final long serialVersionUID = 1L;
+    private final transient List<Match> partial;
+
+    private PartialTimeoutException(TimeoutException cause, List<Match> partial) {
+      super(cause.getMessage());
+      initCause(cause);
+      this.partial = partial;
+    }
+  }
+
+  /**
+   * Build one cost matrix row per case, set to max value for controls that are not among the
+   * case's nearest neighbors, and then fill in the distances (already computed) of the neighbors it
+   * has. Rows are built in parallel for large matrices
+   *
+   * @param columnOf the column of the j'th candidate of case i (see
+   *          {@link CommunityControls#getColumn(int, int)}), or -1 if it is not in the matrix
+   */
+  private static double[][] getCostRows(List<Match> community, int cols,
+                                        IntBinaryOperator columnOf) {
+    double[][] rows = new double[community.size()][];
+    IntStream indices = IntStream.range(0, community.size());
+    if ((long) community.size() * cols >= PARALLEL_BUILD_CELLS) {
+      indices = indices.parallel();
+    }
+    indices.forEach(i -> {
+      Match match = community.get(i);
+      double[] row = new double[cols];
+      Arrays.fill(row, Double.MAX_VALUE);
+      for (int j = 0; j < match.size(); j++) {
+        int column = columnOf.applyAsInt(i, j);
+        if (column >= 0) {
+          row[column] = match.getDistance(j);
+        }
+      }
+      rows[i] = row;
+    });
+    return rows;
+  }
 
-    int[] selections = new HungarianAlgorithm(costMatrix, log).execute();
+  /**
+   * Log progress of long running optimizations as it is sampled, and only record completion at a
+   * finer level
+   */
+  private static void logProgress(int communitySize, HungarianProgress progress, Logger log) {
+    log.log(progress.isDone() ? Level.FINE : Level.INFO,
+            "Optimizing a community of {0} cases: {1}", new Object[] {communitySize, progress});
+  }
+
+  private static List<Match> getOptimizedMatches(final List<Match> matchesWithDuplicates,
+                                                 int numSelect, long deadline,
+                                                 Consumer<HungarianProgress> progress,
+                                                 Duration progressInterval,
+                                                 WarmStartCache warmStart,
+                                                 Logger log) throws TimeoutException {
+    // Extract all unique controls that are matched to at least two cases, and the column each is
+    // assigned in the cost matrix
+    CommunityControls allUniqueControls = new CommunityControls(matchesWithDuplicates);
+    int numCases = matchesWithDuplicates.size();
+    double[][] caseRows = getCostRows(matchesWithDuplicates, allUniqueControls.size(),
+                                      allUniqueControls::getColumn);
+
+    // We replicate the cases in multiple rows so that "numSelect" of each case are evaluated at the
+    // same time. Row r holds case r % numCases; the replicas share the same (read only) row
+    double[][] costMatrix = new double[numCases * numSelect][];
+    for (int i = 0; i < numSelect; i++) {
+      System.arraycopy(caseRows, 0, costMatrix, i * numCases, numCases);
+    }
+
+    HungarianAlgorithm hungarian = new HungarianAlgorithm(costMatrix, log);
+    hungarian.setProgressListener(progress, progressInterval);
+    boolean warm = warmStart != null && warmStart.covers(matchesWithDuplicates);
+    if (warm) {
+      warmStart.seed(hungarian, matchesWithDuplicates, allUniqueControls);
+    }
+    int[] selections;
+    try {
+      selections = hungarian.execute(deadline);
+    } catch (TimeoutException e) {
+      // the matching so far is kept as a starting point for the fallback. Rows can be matched to
+      // the padding columns of the (square) matrix, which are not controls
+      int[] partial = Arrays.stream(hungarian.getMatching()).limit(costMatrix.length)
+                            .map(j -> j < allUniqueControls.size() ? j : -1).toArray();
+      throw new PartialTimeoutException(e, toMatches(matchesWithDuplicates, costMatrix, partial,
+                                                     allUniqueControls));
+    }
+    if (warm) {
+      warmStart.store(hungarian, matchesWithDuplicates, allUniqueControls);
+    }
+    return toMatches(matchesWithDuplicates, costMatrix, selections, allUniqueControls);
+  }
+
+  /**
+   * @param costMatrix the replicated cost matrix, whose row r holds case r % numCases
+   * @param selections the column selected for each row, or -1
+   * @return the selections of each case, in the same order as the cases
+   */
+  private static List<Match> toMatches(List<Match> matchesWithDuplicates, double[][] costMatrix,
+                                       int[] selections, CommunityControls allUniqueControls) {
+    int numCases = matchesWithDuplicates.size();
     // initialize new optimized matches
     List<Match> optimizedMatches = new ArrayList<>(matchesWithDuplicates.size());
-    matchesWithDuplicates.stream().map(d -> new Match(d.sample, new ArrayList<>()))
-                         .forEachOrdered(optimizedMatches::add);
+    matchesWithDuplicates.stream().map(Match::emptyCopy).forEachOrdered(optimizedMatches::add);
 
     for (int i = 0; i < selections.length; i++) {
-      // -1 means the case could not be matched
-      if (selections[i] >= 0) {
-        Sample selection = allUniqueControls.get(selections[i]);
-        optimizedMatches.get(mapOptimize.get(i)).matches.add(selection);
-        int size = optimizedMatches.get(mapOptimize.get(i)).matches.size();
+      // -1 means the case could not be matched, as does an assignment to a control that was not
+      // one of its neighbors
+      if (selections[i] >= 0 && costMatrix[i][selections[i]] != Double.MAX_VALUE) {
+        int selection = allUniqueControls.getControl(selections[i]);
+        int caseIndex = i % numCases;
+        Match optimized = optimizedMatches.get(caseIndex);
+        optimized.addMatch(selection, costMatrix[i][selections[i]]);
 
         // Check if the order of controls has been updated for this matching
-        if (!matchesWithDuplicates.get(mapOptimize.get(i)).matches.get(size - 1).getID()
-                                                                  .equals(selection.getID())) {
-          optimizedMatches.get(mapOptimize.get(i)).setHungarian(true);
+        if (matchesWithDuplicates.get(caseIndex).getMatchIndex(optimized.size() - 1) != selection) {
+          optimized.setHungarian(true);
 
         }
       }
     }
     return optimizedMatches;
   }
+
+  /**
+   * Select one control per case per round, for numSelect rounds. Each round solves an un-replicated
+   * cases x remaining controls matrix, and the controls chosen are removed before the next round.
+   * See {@link OptimizerMode#SEQUENTIAL} for the trade-offs against
+   * {@link #getOptimizedMatches(List, int, long, Consumer, Duration, WarmStartCache, Logger)}
+   */
+  private static List<Match> getSequentialOptimizedMatches(final List<Match> matchesWithDuplicates,
+                                                           int numSelect, long deadline,
+                                                           Consumer<HungarianProgress> progress,
+                                                           Duration progressInterval,
+                                                           Logger log) throws TimeoutException {
+    CommunityControls allUniqueControls = new CommunityControls(matchesWithDuplicates);
+    boolean[] taken = new boolean[allUniqueControls.size()];
+    int numRemaining = allUniqueControls.size();
+
+    List<Match> optimizedMatches = new ArrayList<>(matchesWithDuplicates.size());
+    matchesWithDuplicates.stream().map(Match::emptyCopy).forEachOrdered(optimizedMatches::add);
+
+    for (int round = 0; round < numSelect && numRemaining > 0; round++) {
+      // columns of this round's matrix, for the controls that have not been selected yet
+      int[] remaining = new int[numRemaining];
+      int[] remainingColumns = new int[allUniqueControls.size()];
+      int col = 0;
+      for (int c = 0; c < taken.length; c++) {
+        if (!taken[c]) {
+          remainingColumns[c] = col;
+          remaining[col++] = c;
+        }
+      }
+
+      double[][] costMatrix = getCostRows(matchesWithDuplicates, numRemaining, (i, j) -> {
+        int c = allUniqueControls.getColumn(i, j);
+        return taken[c] ? -1 : remainingColumns[c];
+      });
+
+      HungarianAlgorithm hungarian = new HungarianAlgorithm(costMatrix, log);
+      hungarian.setProgressListener(progress, progressInterval);
+      int[] selections = hungarian.execute(deadline);
+      for (int row = 0; row < selections.length; row++) {
+        // -1 means the case could not be matched, as does an assignment to a control that was not
+        // one of its neighbors
+        if (selections[row] >= 0 && costMatrix[row][selections[row]] != Double.MAX_VALUE) {
+          int c = remaining[selections[row]];
+          int selection = allUniqueControls.getControl(c);
+          Match optimized = optimizedMatches.get(row);
+          optimized.addMatch(selection, costMatrix[row][selections[row]]);
+          taken[c] = true;
+          numRemaining--;
+
+          // Note if the order of controls has changed for this matching
+          if (matchesWithDuplicates.get(row).getMatchIndex(optimized.size() - 1) != selection) {
+            optimized.setHungarian(true);
+          }
+        }
+      }
+    }
+    if (numSelect > 1) {
+      // each round is only optimal given the controls taken by the rounds before it, so the
+      // selection as a whole can be worse than a greedy one
+      optimizedMatches.forEach(m -> m.setOptimal(false));
+    }
+    return optimizedMatches;
+  }
 }
@@ -0,0 +1,190 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast paths for communities that do not need a general assignment solver. Most communities only
+ * have a handful of cases sharing one or two controls, and building a padded square matrix for the
+ * Hungarian algorithm costs far more than solving them directly.
+ */
+class SmallCommunitySolver {
+  // largest number of combinations of candidate selections that will be enumerated
+  static final long EXHAUSTIVE_LIMIT = 50_000;
+
+  private final List<Match> community;
+  // per case, the number of controls that can be selected
+  private final int[] slots;
+  // lower bound on the distance of the cases from i onward
+  private final double[] remainingBound;
+  private final int[] remainingSlots;
+  private final CommunityControls controls;
+  private final boolean[] taken;
+  // current and best selections, as positions in each case's candidate list
+  private final int[][] current;
+  private final int[] currentCount;
+  private int[][] best;
+  private int bestAssigned = -1;
+  private double bestCost = Double.POSITIVE_INFINITY;
+
+  private SmallCommunitySolver(List<Match> community, int numSelect) {
+    this.community = community;
+    int n = community.size();
+    this.slots = new int[n];
+    this.remainingBound = new double[n + 1];
+    this.remainingSlots = new int[n + 1];
+    for (int i = n - 1; i >= 0; i--) {
+      Match match = community.get(i);
+      slots[i] = Math.min(numSelect, match.size());
+      double bound = 0;
+      for (int j = 0; j < slots[i]; j++) {
+        bound += match.getDistance(j);
+      }
+      remainingBound[i] = remainingBound[i + 1] + bound;
+      remainingSlots[i] = remainingSlots[i + 1] + slots[i];
+    }
+    this.controls = new CommunityControls(community);
+    this.taken = new boolean[controls.size()];
+    this.current = new int[n][numSelect];
+    this.currentCount = new int[n];
+  }
+
+  /**
+   * @return the selections for the community if it can be solved without a general solver, or null
+   *         if it can not
+   */
+  static List<Match> solve(List<Match> community, int numSelect) {
+    if (isConflictFree(community, numSelect)) {
+      List<Match> selected = new ArrayList<>(community.size());
+      for (Match match : community) {
+        Match selection = match.emptyCopy();
+        for (int j = 0; j < Math.min(numSelect, match.size()); j++) {
+          selection.addMatch(match.getMatchIndex(j), match.getDistance(j));
+        }
+        selected.add(selection);
+      }
+      return selected;
+    }
+    if (countSelections(community, numSelect) <= EXHAUSTIVE_LIMIT) {
+      SmallCommunitySolver solver = new SmallCommunitySolver(community, numSelect);
+      solver.search(0, 0, 0, 0, 0);
+      return solver.getMatches();
+    }
+    return null;
+  }
+
+  /**
+   * @return true if no two cases share any of their nearest numSelect candidates, in which case
+   *         every case simply keeps them (the cases are only connected through candidates further
+   *         down their lists, so there is no trade-off to make)
+   */
+  private static boolean isConflictFree(List<Match> community, int numSelect) {
+    CommunityControls controls = new CommunityControls(community);
+    boolean[] seen = new boolean[controls.size()];
+    for (Match match : community) {
+      for (int j = 0; j < Math.min(numSelect, match.size()); j++) {
+        int column = controls.getColumn(match.getMatchIndex(j));
+        if (seen[column]) {
+          return false;
+        }
+        seen[column] = true;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of ways each case could select up to numSelect of its candidates (ignoring
+   *         conflicts), multiplied over the cases; capped just above {@link #EXHAUSTIVE_LIMIT}
+   */
+  private static long countSelections(List<Match> community, int numSelect) {
+    long total = 1;
+    for (Match match : community) {
+      // sum of (size choose j) for j <= numSelect
+      long ways = 0;
+      long choose = 1;
+      for (int j = 0; j <= Math.min(numSelect, match.size()); j++) {
+        ways += choose;
+        choose = choose * (match.size() - j) / (j + 1);
+        if (ways > EXHAUSTIVE_LIMIT) {
+          return EXHAUSTIVE_LIMIT + 1;
+        }
+      }
+      total *= ways;
+      if (total > EXHAUSTIVE_LIMIT) {
+        return EXHAUSTIVE_LIMIT + 1;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Branch and bound over the selections of each case in turn, preferring the most controls
+   * assigned and then the lowest total distance (as the Hungarian algorithm does)
+   *
+   * @param i the case being selected for
+   * @param from the position in its candidate list to continue from
+   * @param filled number of selections made for case i
+   * @param assigned number of selections made over all cases
+   * @param cost total distance of the selections made
+   */
+  private void search(int i, int from, int filled, int assigned, double cost) {
+    // the best that can still be achieved from here
+    int maxAssigned = assigned + remainingSlots[i] - filled;
+    if (maxAssigned < bestAssigned) {
+      return;
+    }
+    // every remaining slot must be filled to tie, so the nearest candidates bound the cost (only
+    // from the next case on if this one is part filled)
+    double bound = remainingBound[filled > 0 ? i + 1 : i];
+    if (maxAssigned == bestAssigned && cost + bound >= bestCost) {
+      return;
+    }
+    if (i == community.size()) {
+      if (assigned > bestAssigned || cost < bestCost) {
+        bestAssigned = assigned;
+        bestCost = cost;
+        best = new int[community.size()][];
+        for (int c = 0; c < community.size(); c++) {
+          best[c] = Arrays.copyOf(current[c], currentCount[c]);
+        }
+      }
+      return;
+    }
+    Match match = community.get(i);
+    if (filled < slots[i]) {
+      for (int j = from; j < match.size(); j++) {
+        int column = controls.getColumn(i, j);
+        if (!taken[column]) {
+          taken[column] = true;
+          current[i][filled] = j;
+          currentCount[i] = filled + 1;
+          search(i, j + 1, filled + 1, assigned + 1, cost + match.getDistance(j));
+          taken[column] = false;
+        }
+      }
+    }
+    // leave the remaining slots of this case empty
+    currentCount[i] = filled;
+    search(i + 1, 0, 0, assigned, cost);
+  }
+
+  private List<Match> getMatches() {
+    List<Match> selected = new ArrayList<>(community.size());
+    for (int i = 0; i < community.size(); i++) {
+      Match match = community.get(i);
+      Match selection = match.emptyCopy();
+      for (int j = 0; j < best[i].length; j++) {
+        int position = best[i][j];
+        selection.addMatch(match.getMatchIndex(position), match.getDistance(position));
+        // Check if the order of controls has been updated for this matching
+        if (position != j) {
+          selection.setHungarian(true);
+        }
+      }
+      selected.add(selection);
+    }
+    return selected;
+  }
+}
@@ -0,0 +1,124 @@
+package org.pankratzlab.kdmatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Queries the nearest neighbors of the cases in chunks, writing the baseline outputs of each chunk
+ * (see {@link MatchFanOut}) while the next chunks are queried, rather than querying every case
+ * before writing anything.
+ * <p>
+ * The cases are taken from a stream as they are needed, which for a case file is fed block by
+ * block by a {@link SampleFile.Reader}, so the file is parsed just ahead of querying. Stages are
+ * connected by a bounded queue, so querying runs at most a few chunks ahead of writing.
+ * Only the candidates of each case (store indices and distances of its neighbors) are kept for the
+ * optimization that follows.
+ */
+class StreamingPipeline {
+  // cases queried together, and handed to the writer together
+  static final int CHUNK_SIZE = 4096;
+  // chunks queried ahead of the writer
+  private static final int QUEUED_CHUNKS = 4;
+  // marks the last chunk
+  private static final List<Match> END = Collections.emptyList();
+
+  private StreamingPipeline() {}
+
+  /**
+   * @param tree tree of the controls
+   * @param controls store the controls in the tree are interned in
+   * @param cases the cases to query, interned as the stream is consumed (in order, by a single
+   *          thread)
+   * @param numNeighbors number of nearest neighbors to query for each case
+   * @param matchOutput baseline match output, see
+   *          {@link KDMatch#writeToFile(java.util.stream.Stream, String, String[], String[], int)}
+   * @param statusOutput baseline status output
+   * @param headerA header of the cases
+   * @param headerB header of the controls
+   * @param options output settings, see
+   *          {@link KDMatch#openOutputs(String, String, String[], String[], int, OptimizerOptions)}
+   * @param log
+   * @return the neighbors of each case, in the same order as the cases
+   */
+  static List<Match> queryAndWrite(KDTree<Sample> tree, SampleStore controls, Stream<Sample> cases,
+                                   int numNeighbors, String matchOutput, String statusOutput,
+                                   String[] headerA, String[] headerB, OptimizerOptions options,
+                                   Logger log) throws IOException, InterruptedException,
+                                               ExecutionException {
+    BlockingQueue<List<Match>> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    ExecutorService querier = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "neighbor-query");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // queries run on the configured number of threads, like the optimization
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, options.getThreads()));
+    Future<?> querying = querier.submit(() -> {
+      Iterator<Sample> samples = cases.iterator();
+      while (samples.hasNext()) {
+        List<Sample> chunk = new ArrayList<>(CHUNK_SIZE);
+        while (chunk.size() < CHUNK_SIZE && samples.hasNext()) {
+          chunk.add(samples.next());
+        }
+        Future<List<Match>> queried = pool.submit(() -> chunk.parallelStream().map(c -> {
+          return KDTree.getNearestNeighborsForSample(tree, controls, c, numNeighbors);
+        }).collect(Collectors.toList()));
+        queue.put(queried.get());
+      }
+      queue.put(END);
+      return null;
+    });
+
+    List<Match> candidates = new ArrayList<>();
+    MatchFanOut fanOut = null;
+    try {
+      fanOut = new MatchFanOut(KDMatch.openOutputs(matchOutput, statusOutput, headerA, headerB,
+                                                   numNeighbors, options));
+      List<Match> chunk;
+      while ((chunk = take(queue, querying)) != END) {
+        fanOut.write(chunk);
+        candidates.addAll(chunk);
+        log.log(Level.FINE, "selected baseline neighbors for {0} cases", candidates.size());
+      }
+      fanOut.finish();
+    } finally {
+      if (fanOut != null) {
+        fanOut.abort();
+      }
+      querier.shutdownNow();
+      pool.shutdownNow();
+    }
+    return candidates;
+  }
+
+  /**
+   * @return the next chunk, rethrowing the failure of the querying stage if it failed instead
+   */
+  private static List<Match> take(BlockingQueue<List<Match>> queue,
+                                  Future<?> querying) throws InterruptedException,
+                                                      ExecutionException {
+    List<Match> chunk;
+    while ((chunk = queue.poll(1, TimeUnit.SECONDS)) == null) {
+      if (querying.isDone()) {
+        // throws if querying failed; otherwise the last chunk is already queued
+        querying.get();
+      }
+    }
+    return chunk;
+  }
+}
@@ -0,0 +1,42 @@
+package org.pankratzlab.kdmatch;
+
+import java.time.Duration;
+
+/**
+ * Tracks a per-community and an overall time budget, in terms of {@link System#nanoTime()}. The
+ * overall budget starts counting when this is constructed, each community budget when
+ * {@link #getCommunityDeadline()} is called.
+ */
+class TimeBudget {
+  // far enough away to never be reached, but close enough that deadline arithmetic cannot overflow
+  private static final long UNBOUNDED = Long.MAX_VALUE / 4;
+
+  private final long communityNanos;
+  private final long totalDeadline;
+
+  /**
+   * @param community budget for each community, or null for no limit
+   * @param total overall budget, or null for no limit
+   */
+  TimeBudget(Duration community, Duration total) {
+    long start = System.nanoTime();
+    this.communityNanos = community == null ? UNBOUNDED : community.toNanos();
+    this.totalDeadline = start + (total == null ? UNBOUNDED : total.toNanos());
+  }
+
+  /**
+   * @return true if the overall budget has run out
+   */
+  boolean isExpired() {
+    return System.nanoTime() - totalDeadline > 0;
+  }
+
+  /**
+   * @return the deadline for a community starting now, which is the earlier of the community budget
+   *         and the overall budget
+   */
+  long getCommunityDeadline() {
+    long communityDeadline = System.nanoTime() + communityNanos;
+    return communityDeadline - totalDeadline < 0 ? communityDeadline : totalDeadline;
+  }
+}
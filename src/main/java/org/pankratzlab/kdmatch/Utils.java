@@ -1,10 +1,5 @@
 package org.pankratzlab.kdmatch;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
-import java.util.function.Predicate;
-
 class Utils {
   private Utils() {}
 
@@ -19,11 +14,4 @@ class Utils {
     }
     return Math.sqrt(sum);
   }
-
-  // https://www.baeldung.com/java-streams-distinct-by
-  static <T> Predicate<T> distinctByKey(Function<? super T, ?> keyExtractor) {
-
-    Map<Object, Boolean> seen = new ConcurrentHashMap<>();
-    return t -> seen.putIfAbsent(keyExtractor.apply(t), Boolean.TRUE) == null;
-  }
 }
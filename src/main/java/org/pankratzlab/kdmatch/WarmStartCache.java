@@ -0,0 +1,98 @@
+package org.pankratzlab.kdmatch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The labels and matching of the last Hungarian solution for each case (and each of its replicas
+ * in the cost matrix) and each control, so that a community that is solved again after changing
+ * only slightly (e.g. with more candidates per case, or merged with another community) can start
+ * from them (see {@link HungarianAlgorithm#seed(double[], double[], int[])}).
+ * <p>
+ * Cases are identified by their store index. Communities that are solved at the same time do not
+ * share cases or controls, so they can use the cache concurrently.
+ */
+class WarmStartCache {
+  private final int numCases;
+  private final int numSelect;
+  // per case replica (case * numSelect + replica): label, and the store index of the control it
+  // was matched to or -1
+  private final double[] caseLabels;
+  private final int[] caseMatches;
+  private final double[] controlLabels;
+
+  /**
+   * @param numCases number of cases in the case store
+   * @param numSelect number of controls selected for each case
+   * @param numControls number of controls in the control store
+   */
+  WarmStartCache(int numCases, int numSelect, int numControls) {
+    super();
+    this.numCases = numCases;
+    this.numSelect = numSelect;
+    this.caseLabels = new double[numCases * numSelect];
+    Arrays.fill(caseLabels, Double.NaN);
+    this.caseMatches = new int[numCases * numSelect];
+    Arrays.fill(caseMatches, -1);
+    this.controlLabels = new double[numControls];
+    Arrays.fill(controlLabels, Double.NaN);
+  }
+
+  /**
+   * @return true if every case of the community is in the cache's case store
+   */
+  boolean covers(List<Match> community) {
+    return community.stream().allMatch(m -> m.sample.index >= 0 && m.sample.index < numCases);
+  }
+
+  /**
+   * Seed the solver of a community's cost matrix, with a row for each replica of each case (row r
+   * holding case r % community.size()) and a column for each control
+   */
+  void seed(HungarianAlgorithm hungarian, List<Match> community, CommunityControls controls) {
+    int rows = community.size() * numSelect;
+    int dim = Math.max(rows, controls.size());
+    double[] workerLabels = new double[dim];
+    Arrays.fill(workerLabels, Double.NaN);
+    int[] jobByWorker = new int[dim];
+    Arrays.fill(jobByWorker, -1);
+    for (int r = 0; r < rows; r++) {
+      int key = getKey(community, r);
+      workerLabels[r] = caseLabels[key];
+      if (caseMatches[key] >= 0) {
+        int column = controls.getColumn(caseMatches[key]);
+        jobByWorker[r] = column >= 0 ? column : -1;
+      }
+    }
+    double[] jobLabels = new double[dim];
+    Arrays.fill(jobLabels, Double.NaN);
+    for (int c = 0; c < controls.size(); c++) {
+      jobLabels[c] = controlLabels[controls.getControl(c)];
+    }
+    hungarian.seed(workerLabels, jobLabels, jobByWorker);
+  }
+
+  /**
+   * Record the solution of a community's cost matrix, laid out as for
+   * {@link #seed(HungarianAlgorithm, List, CommunityControls)}
+   */
+  void store(HungarianAlgorithm hungarian, List<Match> community, CommunityControls controls) {
+    int rows = community.size() * numSelect;
+    double[] workerLabels = hungarian.getWorkerLabels();
+    double[] jobLabels = hungarian.getJobLabels();
+    int[] matching = hungarian.getMatching();
+    for (int r = 0; r < rows; r++) {
+      int key = getKey(community, r);
+      caseLabels[key] = workerLabels[r];
+      caseMatches[key] = matching[r] < controls.size() ? controls.getControl(matching[r]) : -1;
+    }
+    for (int c = 0; c < controls.size(); c++) {
+      controlLabels[controls.getControl(c)] = jobLabels[c];
+    }
+  }
+
+  private int getKey(List<Match> community, int row) {
+    return community.get(row % community.size()).sample.index * numSelect
+           + row / community.size();
+  }
+}